@@ -1,16 +1,25 @@
 
-import java.util.Arrays;
-import java.util.Enumeration;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import weka.classifiers.Evaluation;
+import weka.core.BatchPredictor;
 import weka.core.Instances;
 import weka.core.converters.ConverterUtils.DataSource;
-import weka.core.Attribute;
-import weka.core.Instance;
 import weka.classifiers.AbstractClassifier;
 import weka.core.Randomizable;
+import weka.core.Utils;
 
 import weka.classifiers.bayes.*;
 import weka.classifiers.bayes.net.search.local.TAN;
@@ -23,119 +32,371 @@ import weka.classifiers.meta.Bagging;
  */
 
 /**
+ * Runs the experiments: 10-fold cross validation of every model over every file.
+ * Every fold of every model of every file is a task of a bounded pool, the folds of a file are drawn once and shared by
+ * all its models, and the evaluations are put together in a fixed order afterwards, so the results for a SEED don't
+ * depend on the number of threads. The summaries are printed, and written with the timings to results.csv and results.json.
+ * The throughput of scoring row by row against scoring a batch is measured by PredictionBenchmark, in the JMH suite of
+ * benchmarks/, not here.
  *
  * @author Kindo
  */
 public class Main {
 
+    //Number of folds of the cross validation
+    static final int CV_FOLDS = 10;
+
+    //Files the results are written to
+    static final String CSV_FILE = "results.csv", JSON_FILE = "results.json";
+
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments (optional: number of threads, one per core by default, or -check-compiled
+     * to only compare the compiled tables of RandomBayes and RandomTAN with their classifiers over every file)
      */
-    
+
     public static void main(String[] args) {
         try {
-            
+
             //Seed to run the experiments
             int SEED = 9943;
-            
+
             String[] files ={"cylinder_bands.arff", "hypothyroid.arff",  "ionosphere.arff", "kr-vs-kp.arff", "optdigits.arff", "risk_factors_cervical_cancer.arff", "soybean.arff", "spambase.arff", "supermarket.arff", "unbalanced.arff"};
-            
-            for (String file : files)
-                testWithFile(file,SEED);
-            
+
+            if (args.length>0 && args[0].equals("-check-compiled")){
+                checkCompiled(files, SEED);
+                return;
+            }
+
+            //Threads running the folds (the results don't depend on it)
+            int NUM_THREADS = (args.length>0)? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+            resetPeakHeap();
+
+            List<Experiment> experiments = new ArrayList<>();
+            ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+            try{
+                //Submit every fold first, so folds, models and files all run at once
+                for (String file : files){
+                    try {
+                        Folds folds = new Folds(loadData(file), SEED);
+                        for (AbstractClassifier model : models(SEED))
+                            experiments.add(new Experiment(file, model, folds, pool));
+                    } catch (Exception ex) {
+                        Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Can't load "+file, ex);
+                    }
+                }
+
+                //Collect them in the order they were submitted
+                for (Experiment experiment : experiments){
+                    try {
+                        experiment.evaluate();
+                        System.out.println("File "+experiment.file);
+                        System.out.println(experiment.name);
+                        System.out.println(experiment.eval.toSummaryString());
+                    } catch (Exception ex) {
+                        Logger.getLogger(Main.class.getName()).log(Level.SEVERE, experiment.file+" "+experiment.name, ex);
+                    }
+                }
+            }
+            finally{
+                pool.shutdownNow();
+            }
+
+            double peak_heap = peakHeapMB();
+            System.out.println(String.format(Locale.ROOT, "Peak heap: %.1f MB", peak_heap));
+            writeCSV(experiments);
+            writeJSON(experiments, SEED, NUM_THREADS, peak_heap);
+
         } catch (Exception ex) {
             ex.printStackTrace();
         }
     }
-    
-    //Perform tests on a given .arrf file, with a seed
-    static void testWithFile(String filename, int seed){
-        try {
-            
-            System.out.println("File "+filename);
-            
-            //Configuration shared by the models
-            final int PERC_INSTANCES = 100;//% of instances (with bootstrap)
-            final int PERC_FEATURES = 50;//% of features
-            final int NUM_CLASSIFIERS = 10;//Number of classifiers
-            
-            
-            DataSource source = new DataSource(filename);
-            // setting class attribute if the data format does not provide this information
-            // For example, the XRFF format saves the class attribute information as well
-            Instances data = source.getDataSet();
-            if (data.classIndex() == -1)
-                data.setClassIndex(data.numAttributes() - 1);
-            
-            //NaiveBayes
-            NaiveBayes nb = new NaiveBayes();
-            testModel(data,seed,nb);
-            
-            //TAN
-            BayesNet tan = new BayesNet();
-            tan.setSearchAlgorithm(new TAN());
-            testModel(data,seed,tan);
-            
-            //Bagging - NaiveBayes
-            Bagging bagging_nb = new Bagging();
-            bagging_nb.setClassifier(new NaiveBayes());
-            bagging_nb.setBagSizePercent(PERC_INSTANCES);
-            bagging_nb.setNumIterations(NUM_CLASSIFIERS);
-            testModel(data,seed,bagging_nb);
-            
-            //Bagging - TAN
-            Bagging bagging_tan = new Bagging();
-            BayesNet base_bagging_tan = new BayesNet();
-            base_bagging_tan.setSearchAlgorithm(new TAN());
-            bagging_tan.setClassifier(bagging_nb);
-            bagging_tan.setBagSizePercent(PERC_INSTANCES);
-            bagging_tan.setNumIterations(NUM_CLASSIFIERS);
-            
-            testModel(data,seed,bagging_tan);
-            
-            //RandomBayes
-            RandomBayes rb = new RandomBayes();
-            rb.set_feat_perc(PERC_FEATURES);
-            rb.set_instances_perc(PERC_INSTANCES);
-            rb.set_n_classifiers(NUM_CLASSIFIERS);
-            testModel(data,seed,rb);
-            
-            //RandomTAN
-            RandomTAN rt = new RandomTAN();
-            rt.set_feat_perc(PERC_FEATURES);
-            rt.set_instances_perc(PERC_INSTANCES);
-            rt.set_n_classifiers(NUM_CLASSIFIERS);
-            testModel(data,seed,rt);
-            
-        } catch (Exception ex) {
-            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+
+    //Load an .arff file, with the last attribute as the class if the file doesn't say which one it is
+    static Instances loadData(String filename) throws Exception{
+        DataSource source = new DataSource(filename);
+        // setting class attribute if the data format does not provide this information
+        // For example, the XRFF format saves the class attribute information as well
+        Instances data = source.getDataSet();
+        if (data.classIndex() == -1)
+            data.setClassIndex(data.numAttributes() - 1);
+        return data;
+    }
+
+    //Models compared on every file, each one copied for every fold
+    static List<AbstractClassifier> models(int seed){
+
+        //Configuration shared by the models
+        final int PERC_INSTANCES = 100;//% of instances (with bootstrap)
+        final int PERC_FEATURES = 50;//% of features
+        final int NUM_CLASSIFIERS = 10;//Number of classifiers
+
+        List<AbstractClassifier> models = new ArrayList<>();
+
+        //NaiveBayes
+        NaiveBayes nb = new NaiveBayes();
+        models.add(nb);
+
+        //TAN
+        BayesNet tan = new BayesNet();
+        tan.setSearchAlgorithm(new TAN());
+        models.add(tan);
+
+        //Bagging - NaiveBayes
+        Bagging bagging_nb = new Bagging();
+        bagging_nb.setClassifier(new NaiveBayes());
+        bagging_nb.setBagSizePercent(PERC_INSTANCES);
+        bagging_nb.setNumIterations(NUM_CLASSIFIERS);
+        models.add(bagging_nb);
+
+        //Bagging - TAN
+        Bagging bagging_tan = new Bagging();
+        BayesNet base_bagging_tan = new BayesNet();
+        base_bagging_tan.setSearchAlgorithm(new TAN());
+        bagging_tan.setClassifier(bagging_nb);
+        bagging_tan.setBagSizePercent(PERC_INSTANCES);
+        bagging_tan.setNumIterations(NUM_CLASSIFIERS);
+        models.add(bagging_tan);
+
+        //RandomBayes (single threaded, the folds already run in parallel)
+        RandomBayes rb = new RandomBayes();
+        rb.set_feat_perc(PERC_FEATURES);
+        rb.set_instances_perc(PERC_INSTANCES);
+        rb.set_n_classifiers(NUM_CLASSIFIERS);
+        rb.set_num_threads(1);
+        models.add(rb);
+
+        //RandomTAN
+        RandomTAN rt = new RandomTAN();
+        rt.set_feat_perc(PERC_FEATURES);
+        rt.set_instances_perc(PERC_INSTANCES);
+        rt.set_n_classifiers(NUM_CLASSIFIERS);
+        rt.set_num_threads(1);
+        models.add(rt);
+
+        //Set the seed, if possible
+        for (AbstractClassifier model : models){
+            if (model instanceof Randomizable)
+                ((Randomizable) model).setSeed(seed);
         }
-        
+
+        return models;
     }
-    
-    //Performs tests on a single model
-    static void testModel(Instances data, int seed, AbstractClassifier c){
-        try {
-            
-            System.out.println(c.getClass().toString()+ " " + ((c instanceof weka.classifiers.meta.Bagging)? ((weka.classifiers.meta.Bagging)c).getClassifier().getClass() : ""));
-            
-            final int CV_FOLDS = 10;
-            
-            //Train the model on a copy of the data
-            Instances dataCopy = new Instances(data);
-            
-            //Set the seed, if possible
-            if (c instanceof Randomizable){
-                ((Randomizable)c).setSeed(seed);
+
+    /*Folds*/
+
+    //Folds of a file, drawn exactly as Evaluation.crossValidateModel draws them
+    static class Folds{
+
+        //Data of the file
+        final Instances data;
+
+        //Training and test set of each fold
+        final Instances[] train = new Instances[CV_FOLDS], test = new Instances[CV_FOLDS];
+
+        Folds(Instances data, int seed){
+            this.data = data;
+
+            Random random = new Random(seed);
+            Instances shuffled = new Instances(data);//Make a copy of the data we can reorder
+            shuffled.randomize(random);
+            if (shuffled.classAttribute().isNominal())
+                shuffled.stratify(CV_FOLDS);
+
+            for (int fold = 0; fold<CV_FOLDS; ++fold){
+                train[fold] = shuffled.trainCV(CV_FOLDS, fold, random);
+                test[fold] = shuffled.testCV(CV_FOLDS, fold);
             }
-            
-            Evaluation eval = new Evaluation(dataCopy);
-            eval.crossValidateModel(c, dataCopy, CV_FOLDS, new Random(seed));
-            System.out.println(eval.toSummaryString());
-            
-        } catch (Exception ex) {
-            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
-    
+
+    /*Experiments*/
+
+    //Cross validation of a model over a file
+    static class Experiment{
+
+        final String file, name;
+
+        final Folds folds;
+
+        //Result of each fold, while running
+        final List<Future<FoldResult>> results = new ArrayList<>();
+
+        //Evaluation of all the folds, once they are done
+        Evaluation eval;
+
+        //Total time spent training and predicting over all the folds (ms), and memory allocated by them (MB, -1 if unknown)
+        double train_ms, predict_ms, alloc_mb;
+
+        Experiment(String file, AbstractClassifier model, Folds folds, ExecutorService pool){
+            this.file = file;
+            this.folds = folds;
+            name = model.getClass().getName() + ((model instanceof Bagging)? " " + ((Bagging) model).getClassifier().getClass().getName() : "");
+
+            for (int fold = 0; fold<CV_FOLDS; ++fold){
+                final int f = fold;
+                results.add(pool.submit(() -> runFold(model, folds.train[f], folds.test[f])));
+            }
+        }
+
+        //Wait for the folds and evaluate their predictions in order
+        void evaluate() throws Exception{
+            eval = new Evaluation(folds.data);
+            alloc_mb = 0;
+
+            for (int fold = 0; fold<CV_FOLDS; ++fold){
+                FoldResult result;
+                try{
+                    result = results.get(fold).get();
+                }
+                catch (ExecutionException ex){//Rethrow the original failure of the fold
+                    if (ex.getCause() instanceof Exception)
+                        throw (Exception) ex.getCause();
+                    throw ex;
+                }
+
+                eval.setPriors(folds.train[fold]);
+                Instances test = folds.test[fold];
+                for (int i = 0; i<test.numInstances(); ++i)
+                    eval.evaluateModelOnceAndRecordPrediction(result.predictions[i], test.instance(i));
+
+                train_ms += result.train_ns/1e6;
+                predict_ms += result.predict_ns/1e6;
+                alloc_mb = (alloc_mb<0 || result.alloc_bytes<0)? -1 : alloc_mb + result.alloc_bytes/(1024.0*1024.0);
+            }
+        }
+    }
+
+    //Predictions and costs of a single fold
+    static class FoldResult{
+        double[][] predictions;
+        long train_ns, predict_ns, alloc_bytes;
+    }
+
+    //Train a copy of the model with a fold and predict its test set, as Evaluation.evaluateModel predicts it
+    static FoldResult runFold(AbstractClassifier model, Instances train, Instances test) throws Exception{
+        FoldResult result = new FoldResult();
+        long alloc = allocatedBytes();
+
+        AbstractClassifier copy = (AbstractClassifier) AbstractClassifier.makeCopy(model);
+        long start = System.nanoTime();
+        copy.buildClassifier(train);
+        result.train_ns = System.nanoTime()-start;
+
+        //Predict without the class
+        Instances unlabeled = new Instances(test);
+        for (int i = 0; i<unlabeled.numInstances(); ++i)
+            unlabeled.instance(i).setClassMissing();
+
+        start = System.nanoTime();
+        if (copy instanceof BatchPredictor && ((BatchPredictor) copy).implementsMoreEfficientBatchPrediction()){
+            result.predictions = copy.distributionsForInstances(unlabeled);
+        }
+        else{
+            result.predictions = new double[unlabeled.numInstances()][];
+            for (int i = 0; i<unlabeled.numInstances(); ++i)
+                result.predictions[i] = copy.distributionForInstance(unlabeled.instance(i));
+        }
+        result.predict_ns = System.nanoTime()-start;
+
+        long alloc_end = allocatedBytes();
+        result.alloc_bytes = (alloc<0 || alloc_end<0)? -1 : alloc_end-alloc;
+        return result;
+    }
+
+    /*Compiled tables*/
+
+    //Configurations of the compiled models checked over every file
+    static final String[] COMPILED_CHECKS = {"", "-float", "-D -shared-bins"};
+
+    //Train RandomBayes and RandomTAN over the whole of every file and print how far the distributions of their compiled tables are from the ones of their classifiers
+    static void checkCompiled(String[] files, int seed){
+        for (String file : files){
+            try {
+                Instances data = loadData(file);
+                for (String check : COMPILED_CHECKS){
+                    List<RandomEnsemble<?, ?>> checked = new ArrayList<>();
+                    checked.add(new RandomBayes());
+                    if (!check.contains("-shared-bins"))//Shared bins are only for RandomBayes
+                        checked.add(new RandomTAN());
+
+                    for (RandomEnsemble<?, ?> model : checked){
+                        model.setOptions(Utils.splitOptions("-P 100 -F 50 -N 10 "+check));//Same configuration as the experiments
+                        model.setSeed(seed);
+                        model.buildClassifier(data);
+                        System.out.println(String.format(Locale.ROOT, "%s %s %s: largest difference %.3e",
+                                file, model.getClass().getSimpleName(), check, model.compiledDifference(data)));
+                    }
+                }
+            } catch (Exception ex) {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Can't check "+file, ex);
+            }
+        }
+    }
+
+    /*Memory*/
+
+    //Bytes allocated so far by the current thread, -1 if the JVM doesn't tell
+    static long allocatedBytes(){
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    static void resetPeakHeap(){
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if (pool.getType()==MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    //Peak heap used since the last reset (sum of the peaks of the heap pools), in MB
+    static double peakHeapMB(){
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if (pool.getType()==MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak/(1024.0*1024.0);
+    }
+
+    /*Output*/
+
+    static void writeCSV(List<Experiment> experiments) throws Exception{
+        try (PrintWriter out = new PrintWriter(CSV_FILE, "UTF-8")){
+            out.println("file,model,pct_correct,kappa,mean_absolute_error,root_mean_squared_error,train_ms,predict_ms,alloc_mb");
+            for (Experiment e : experiments){
+                if (e.eval==null)
+                    continue;
+                out.println(String.format(Locale.ROOT, "%s,%s,%.4f,%.4f,%.6f,%.6f,%.1f,%.1f,%.1f",
+                        e.file, e.name, e.eval.pctCorrect(), e.eval.kappa(), e.eval.meanAbsoluteError(), e.eval.rootMeanSquaredError(),
+                        e.train_ms, e.predict_ms, e.alloc_mb));
+            }
+        }
+    }
+
+    static void writeJSON(List<Experiment> experiments, int seed, int threads, double peak_heap) throws Exception{
+        try (PrintWriter out = new PrintWriter(JSON_FILE, "UTF-8")){
+            out.println("{");
+            out.println(String.format(Locale.ROOT, "  \"seed\": %d,%n  \"threads\": %d,%n  \"folds\": %d,%n  \"peak_heap_mb\": %.1f,", seed, threads, CV_FOLDS, peak_heap));
+            out.println("  \"results\": [");
+
+            boolean first = true;
+            for (Experiment e : experiments){
+                if (e.eval==null)
+                    continue;
+                if (!first)
+                    out.println(",");
+                first = false;
+                out.print(String.format(Locale.ROOT, "    {\"file\": \"%s\", \"model\": \"%s\", \"pct_correct\": %.4f, \"kappa\": %.4f, \"mean_absolute_error\": %.6f, \"root_mean_squared_error\": %.6f, \"train_ms\": %.1f, \"predict_ms\": %.1f, \"alloc_mb\": %.1f}",
+                        e.file, e.name, e.eval.pctCorrect(), e.eval.kappa(), e.eval.meanAbsoluteError(), e.eval.rootMeanSquaredError(),
+                        e.train_ms, e.predict_ms, e.alloc_mb));
+            }
+
+            out.println();
+            out.println("  ]");
+            out.println("}");
+        }
+    }
 }
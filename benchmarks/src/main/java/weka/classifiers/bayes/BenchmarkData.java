@@ -0,0 +1,30 @@
+package weka.classifiers.bayes;
+
+import java.io.File;
+
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Datasets of the benchmarks, the same .arff files Main runs the experiments with.
+ * They are read from the directory in the randombayes.data system property (the working directory by default).
+ *
+ * @author Kindo
+ */
+final class BenchmarkData {
+
+    //Seed of the classifiers and of the samples drawn by the benchmarks (same one Main uses)
+    static final int SEED = 9943;
+
+    private BenchmarkData(){
+    }
+
+    //Load a dataset, with the last attribute as the class if the file doesn't say which one it is
+    static Instances load(String filename) throws Exception{
+        File file = new File(System.getProperty("randombayes.data", "."), filename);
+        Instances data = new DataSource(file.getPath()).getDataSet();
+        if (data.classIndex() == -1)
+            data.setClassIndex(data.numAttributes() - 1);
+        return data;
+    }
+}
@@ -0,0 +1,31 @@
+package weka.classifiers.bayes;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line, and unless told otherwise runs with the gc profiler
+ * (allocation rate) and writes the results as JSON to jmh-result.json, so they can be compared between releases.
+ *
+ * @author Kindo
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception{
+        CommandLineOptions cmd = new CommandLineOptions(args);
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        if (cmd.getProfilers().isEmpty())
+            options.addProfiler(GCProfiler.class);
+        if (!cmd.getResultFormat().hasValue())
+            options.resultFormat(ResultFormatType.JSON);
+        if (!cmd.getResult().hasValue())
+            options.result("jmh-result.json");
+
+        new Runner(options.build()).run();
+    }
+}
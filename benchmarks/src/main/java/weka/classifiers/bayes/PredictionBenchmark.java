@@ -0,0 +1,148 @@
+package weka.classifiers.bayes;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Instances;
+
+/**
+ * Prediction throughput of trained ensembles: one row at a time (distributionForInstance, cycling over the training
+ * data) and the whole training data as one batch (distributionsForInstances), single threaded.
+ * The default ensembles are compiled: row by row every classifier reads its tables for each row, while the batch goes
+ * through the classifiers member by member over blocks of rows. RandomBayes with discretization only reads lookup tables,
+ * as RandomTAN does. RandomBayes with kernel estimators can't be compiled, and shows what the batch gains by going through
+ * the classifiers themselves member by member.
+ *
+ * @author Kindo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PredictionBenchmark {
+
+    @Param({"cylinder_bands.arff", "hypothyroid.arff", "ionosphere.arff", "kr-vs-kp.arff", "optdigits.arff", "risk_factors_cervical_cancer.arff", "soybean.arff", "spambase.arff", "supermarket.arff", "unbalanced.arff"})
+    public String dataset;
+
+    //Number of classifiers
+    @Param({"10", "50"})
+    public int n_classifiers;
+
+    //Percentage of features
+    @Param({"25", "50", "75"})
+    public float feat_perc;
+
+    Instances data;
+
+    RandomBayes rb;
+
+    RandomTAN rt;
+
+    //RandomBayes with discretization
+    RandomBayes rb_discretized;
+
+    //RandomBayes with kernel estimators, left uncompiled
+    RandomBayes rb_kernel;
+
+    //Next row scored by the single row benchmarks
+    int row;
+
+    @Setup(Level.Trial)
+    public void build() throws Exception{
+        data = BenchmarkData.load(dataset);
+
+        rb = new RandomBayes();
+        rb.setSeed(BenchmarkData.SEED);
+        rb.set_n_classifiers(n_classifiers);
+        rb.set_feat_perc(feat_perc);
+        rb.buildClassifier(data);
+
+        rt = new RandomTAN();
+        rt.setSeed(BenchmarkData.SEED);
+        rt.set_n_classifiers(n_classifiers);
+        rt.set_feat_perc(feat_perc);
+        rt.buildClassifier(data);
+
+        rb_discretized = new RandomBayes();
+        rb_discretized.setSeed(BenchmarkData.SEED);
+        rb_discretized.set_n_classifiers(n_classifiers);
+        rb_discretized.set_feat_perc(feat_perc);
+        rb_discretized.set_d_flag(true);
+        rb_discretized.buildClassifier(data);
+
+        rb_kernel = new RandomBayes();
+        rb_kernel.setSeed(BenchmarkData.SEED);
+        rb_kernel.set_n_classifiers(n_classifiers);
+        rb_kernel.set_feat_perc(feat_perc);
+        rb_kernel.set_k_flag(true);
+        rb_kernel.buildClassifier(data);
+    }
+
+    //Index of the next row, cycling over the data
+    private int nextRow(){
+        int current = row;
+        row = (row+1 == data.numInstances())? 0 : row+1;
+        return current;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double[] randomBayesRow() throws Exception{
+        return rb.distributionForInstance(data.instance(nextRow()));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double[] randomTANRow() throws Exception{
+        return rt.distributionForInstance(data.instance(nextRow()));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public double[][] randomBayesBatch() throws Exception{
+        return rb.distributionsForInstances(data);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public double[][] randomTANBatch() throws Exception{
+        return rt.distributionsForInstances(data);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double[] randomBayesDiscretizedRow() throws Exception{
+        return rb_discretized.distributionForInstance(data.instance(nextRow()));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public double[][] randomBayesDiscretizedBatch() throws Exception{
+        return rb_discretized.distributionsForInstances(data);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double[] randomBayesKernelRow() throws Exception{
+        return rb_kernel.distributionForInstance(data.instance(nextRow()));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public double[][] randomBayesKernelBatch() throws Exception{
+        return rb_kernel.distributionsForInstances(data);
+    }
+}
@@ -0,0 +1,83 @@
+package weka.classifiers.bayes;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Instances;
+
+/**
+ * Feature selection of a single member in isolation: the random CFS of one bootstrap sample, for each source of the
+ * correlations. What the members share (the discretization of the whole data) is built once per trial, as the
+ * ensembles build it once per buildClassifier.
+ *
+ * @author Kindo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RandomCFSBenchmark {
+
+    @Param({"cylinder_bands.arff", "hypothyroid.arff", "ionosphere.arff", "kr-vs-kp.arff", "optdigits.arff", "risk_factors_cervical_cancer.arff", "soybean.arff", "spambase.arff", "supermarket.arff", "unbalanced.arff"})
+    public String dataset;
+
+    //Percentage of features
+    @Param({"25", "50", "75"})
+    public float feat_perc;
+
+    //Source of the correlations (see RandomCFS.CORRELATION_MODES)
+    @Param({"member", "shared", "weighted"})
+    public String corr;
+
+    Instances data;
+
+    //Bootstrap of the member
+    int[] counts;
+
+    CfsCorrelations correlations;
+
+    DiscreteColumns columns;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception{
+        data = BenchmarkData.load(dataset);
+        counts = Bootstrap.counts(data.numInstances(), 100, BenchmarkData.SEED);
+
+        if (!corr.equals("member"))
+            columns = new DiscreteColumns(data);
+        if (corr.equals("shared"))
+            correlations = new CfsCorrelations.Weighted(columns, null);
+    }
+
+    @Benchmark
+    public List<Integer> select() throws Exception{
+        RandomCFS cfs;
+        switch (corr){
+            case "shared":
+                cfs = new RandomCFS(data, correlations);
+                break;
+            case "weighted"://Fresh cache, every member computes its own weighted correlations
+                cfs = new RandomCFS(data, new CfsCorrelations.Weighted(columns, counts));
+                break;
+            default://The sample discretized by itself
+                cfs = new RandomCFS(data, new CfsCorrelations.Weighted(new DiscreteColumns(Bootstrap.replicate(data, counts)), null));
+        }
+        return cfs.select(feat_perc/100.0f, new Random(BenchmarkData.SEED));
+    }
+}
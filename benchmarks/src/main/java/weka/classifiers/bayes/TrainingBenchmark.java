@@ -0,0 +1,70 @@
+package weka.classifiers.bayes;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Instances;
+
+/**
+ * Time to train a whole ensemble (buildClassifier), single threaded.
+ *
+ * @author Kindo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingBenchmark {
+
+    @Param({"cylinder_bands.arff", "hypothyroid.arff", "ionosphere.arff", "kr-vs-kp.arff", "optdigits.arff", "risk_factors_cervical_cancer.arff", "soybean.arff", "spambase.arff", "supermarket.arff", "unbalanced.arff"})
+    public String dataset;
+
+    //Number of classifiers
+    @Param({"10", "50"})
+    public int n_classifiers;
+
+    //Percentage of features
+    @Param({"25", "50", "75"})
+    public float feat_perc;
+
+    Instances data;
+
+    @Setup(Level.Trial)
+    public void load() throws Exception{
+        data = BenchmarkData.load(dataset);
+    }
+
+    @Benchmark
+    public RandomBayes buildRandomBayes() throws Exception{
+        RandomBayes rb = new RandomBayes();
+        rb.setSeed(BenchmarkData.SEED);
+        rb.set_n_classifiers(n_classifiers);
+        rb.set_feat_perc(feat_perc);
+        rb.buildClassifier(data);
+        return rb;
+    }
+
+    @Benchmark
+    public RandomTAN buildRandomTAN() throws Exception{
+        RandomTAN rt = new RandomTAN();
+        rt.setSeed(BenchmarkData.SEED);
+        rt.set_n_classifiers(n_classifiers);
+        rt.set_feat_perc(feat_perc);
+        rt.buildClassifier(data);
+        return rt;
+    }
+}
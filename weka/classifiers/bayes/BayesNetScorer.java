@@ -0,0 +1,390 @@
+package weka.classifiers.bayes;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import weka.classifiers.bayes.net.ParentSet;
+import weka.classifiers.bayes.net.estimate.SimpleEstimator;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+
+/**
+ * The BayesNet members of a RandomTAN flattened into primitive tables, so the posterior of every member is a fixed walk
+ * over arrays instead of the estimator graph, the parent sets and the filters of each member.
+ * Every node keeps its log-CPT as one block of [parent configuration][value] (the class being one more parent), the parents as node positions with
+ * their strides, and how its value is read from the original data: the member's cut points for discretized attributes
+ * and the value the member fills in when it is missing.
+ * The log-probabilities are added in the same order SimpleEstimator.distributionForInstance adds them, so the distributions
+ * equal the ones of the members up to rounding (see RandomEnsemble.compiledDifference), or up to float32 precision with -float.
+ * A sparse instance isn't expanded to all the attributes of the data, each node looks up the value it reads in it.
+ * Written in the compact format as its sections in the order of the fields.
+ *
+ * @author Kindo
+ */
+class BayesNetScorer extends EnsembleScorer {
+
+    //Number of classes
+    private final int num_classes;
+
+    //The nodes of member m are [member_nodes[m], member_nodes[m+1]), in the order of the attributes the member sees
+    private final IntBuffer member_nodes;
+
+    //Attribute (of the original data) read by each node, -1 for the class
+    private final IntBuffer node_atts;
+
+    //Number of values of each node
+    private final IntBuffer node_num_values;
+
+    //Where the log-CPT of each node starts in tables
+    private final IntBuffer node_offsets;
+
+    //Distance in tables between consecutive classes of a node (1 for the class node, its value is the class)
+    private final IntBuffer class_steps;
+
+    //The attribute parents of node t are [parent_starts[t], parent_starts[t+1]), as positions inside the member and strides in the CPT
+    private final IntBuffer parent_starts;
+    private final IntBuffer parent_nodes;
+    private final IntBuffer parent_strides;
+
+    //Value index a member uses for each node when the value is missing
+    private final IntBuffer replacements;
+
+    //Cut points of each discretized node are [cut_starts[t], cut_starts[t+1]) in cuts (none for nominal nodes)
+    private final IntBuffer cut_starts;
+    private final DoubleBuffer cuts;
+
+    //1 for the nodes discretized by their member
+    private final ByteBuffer binned;
+
+    //Log-probabilities of every node, in double precision or in float_tables when quantized to float32 (the other one is null)
+    private final DoubleBuffer tables;
+    private final FloatBuffer float_tables;
+
+    //Largest number of nodes of a member
+    private final int max_nodes;
+
+    private BayesNetScorer(int num_classes, IntBuffer member_nodes, IntBuffer node_atts, IntBuffer node_num_values, IntBuffer node_offsets,
+            IntBuffer class_steps, IntBuffer parent_starts, IntBuffer parent_nodes, IntBuffer parent_strides, IntBuffer replacements,
+            IntBuffer cut_starts, DoubleBuffer cuts, ByteBuffer binned, DoubleBuffer tables, FloatBuffer float_tables){
+        this.num_classes = num_classes;
+        this.member_nodes = member_nodes;
+        this.node_atts = node_atts;
+        this.node_num_values = node_num_values;
+        this.node_offsets = node_offsets;
+        this.class_steps = class_steps;
+        this.parent_starts = parent_starts;
+        this.parent_nodes = parent_nodes;
+        this.parent_strides = parent_strides;
+        this.replacements = replacements;
+        this.cut_starts = cut_starts;
+        this.cuts = cuts;
+        this.binned = binned;
+        this.tables = tables;
+        this.float_tables = float_tables;
+
+        int max = 0;
+        for (int m = 0; m<member_nodes.limit()-1; ++m)
+            max = Math.max(max, member_nodes.get(m+1)-member_nodes.get(m));
+        max_nodes = max;
+    }
+
+    //Flatten the trained members, each one seeing the attributes of its projection with the format of its header, with the tables quantized to float32 or not. Null if a member doesn't use the simple estimator
+    static BayesNetScorer compile(BayesNet[] bag, int[][] projections, Instances[] headers, boolean quantize) throws Exception{
+        int num_classes = headers[0].numClasses();
+
+        //Count the nodes, parents, cut points and the size of the tables first
+        int num_nodes = 0, num_parents = 0, num_cuts = 0, table_size = 0;
+        for (int m = 0; m<bag.length; ++m){
+            if (bag[m].getEstimator().getClass()!=SimpleEstimator.class)
+                return null;
+
+            Instances format = bag[m].m_Instances;
+            for (int j = 0; j<format.numAttributes(); ++j){
+                ParentSet parents = bag[m].getParentSet(j);
+                int num_values = (j==format.classIndex())? num_classes : format.attribute(j).numValues();
+                table_size += parents.getCardinalityOfParents()*num_values;
+
+                for (int p = 0; p<parents.getNrOfParents(); ++p){
+                    if (parents.getParent(p)!=format.classIndex())
+                        ++num_parents;
+                }
+
+                double[] member_cuts = cutPoints(bag[m], headers[m], j);
+                if (member_cuts!=null)
+                    num_cuts += member_cuts.length;
+
+                ++num_nodes;
+            }
+        }
+
+        int[] member_nodes = new int[bag.length+1];
+        int[] node_atts = new int[num_nodes];
+        int[] node_num_values = new int[num_nodes];
+        int[] node_offsets = new int[num_nodes];
+        int[] class_steps = new int[num_nodes];
+        int[] parent_starts = new int[num_nodes+1];
+        int[] parent_nodes = new int[num_parents];
+        int[] parent_strides = new int[num_parents];
+        int[] replacements = new int[num_nodes];
+        int[] cut_starts = new int[num_nodes+1];
+        double[] cuts = new double[num_cuts];
+        byte[] binned = new byte[num_nodes];
+        double[] tables = new double[table_size];
+
+        int t = 0, parent = 0, cut = 0, offset = 0;
+        for (int m = 0; m<bag.length; ++m){
+            BayesNet net = bag[m];
+            Instances format = net.m_Instances;
+            int class_index = format.classIndex();
+
+            //Value the member fills in for every missing attribute, by classifying an instance with every value missing
+            Instance probe = new DenseInstance(headers[m].numAttributes());
+            probe.setDataset(headers[m]);
+            Instance filled = net.normalizeInstance(probe);
+
+            member_nodes[m] = t;
+            for (int j = 0; j<format.numAttributes(); ++j, ++t){
+                ParentSet parents = net.getParentSet(j);
+                int num_values = (j==class_index)? num_classes : format.attribute(j).numValues();
+
+                node_atts[t] = (j==class_index)? -1 : projections[m][j];
+                node_num_values[t] = num_values;
+                node_offsets[t] = offset;
+                replacements[t] = (int) filled.value(j);
+
+                //Strides of the parents, the CPT index is built as in SimpleEstimator (iCPT = iCPT*cardinality + value)
+                parent_starts[t] = parent;
+                int stride = 1, class_stride = 0;
+                for (int p = parents.getNrOfParents()-1; p>=0; --p){
+                    int node = parents.getParent(p);
+                    if (node==class_index){
+                        class_stride = stride;
+                        stride *= num_classes;
+                    }
+                    else{
+                        parent_nodes[parent] = node;
+                        parent_strides[parent] = stride;
+                        ++parent;
+                        stride *= format.attribute(node).numValues();
+                    }
+                }
+                class_steps[t] = (j==class_index)? 1 : class_stride*num_values;
+
+                cut_starts[t] = cut;
+                double[] member_cuts = cutPoints(net, headers[m], j);
+                binned[t] = (byte) (headers[m].attribute(j).isNumeric()? 1 : 0);
+                if (member_cuts!=null){
+                    System.arraycopy(member_cuts, 0, cuts, cut, member_cuts.length);
+                    cut += member_cuts.length;
+                }
+
+                //Log-probabilities, [parent configuration][value] as the estimators are stored
+                for (int cpt = 0; cpt<parents.getCardinalityOfParents(); ++cpt){
+                    for (int value = 0; value<num_values; ++value)
+                        tables[offset++] = Math.log(net.m_Distributions[j][cpt].getProbability(value));
+                }
+            }
+        }
+        member_nodes[bag.length] = t;
+        parent_starts[num_nodes] = parent;
+        cut_starts[num_nodes] = cut;
+
+        return new BayesNetScorer(num_classes, IntBuffer.wrap(member_nodes), IntBuffer.wrap(node_atts), IntBuffer.wrap(node_num_values),
+                IntBuffer.wrap(node_offsets), IntBuffer.wrap(class_steps), IntBuffer.wrap(parent_starts), IntBuffer.wrap(parent_nodes),
+                IntBuffer.wrap(parent_strides), IntBuffer.wrap(replacements), IntBuffer.wrap(cut_starts), DoubleBuffer.wrap(cuts),
+                ByteBuffer.wrap(binned), quantize? null : DoubleBuffer.wrap(tables), quantize? FloatBuffer.wrap(NaiveBayesScorer.quantized(tables)) : null);
+    }
+
+    //Scorer of the sections written by write, read in place
+    static BayesNetScorer read(CompactFormat.Reader in){
+        int num_classes = in.readInt();
+        IntBuffer member_nodes = in.ints(), node_atts = in.ints(), node_num_values = in.ints(), node_offsets = in.ints(), class_steps = in.ints();
+        IntBuffer parent_starts = in.ints(), parent_nodes = in.ints(), parent_strides = in.ints(), replacements = in.ints(), cut_starts = in.ints();
+        DoubleBuffer cuts = in.doubles();
+        ByteBuffer binned = in.bytes();
+        boolean quantized = in.quantized();
+        DoubleBuffer tables = quantized? null : in.doubles();
+        FloatBuffer float_tables = quantized? in.floats() : null;
+
+        return new BayesNetScorer(num_classes, member_nodes, node_atts, node_num_values, node_offsets, class_steps, parent_starts,
+                parent_nodes, parent_strides, replacements, cut_starts, cuts, binned, tables, float_tables);
+    }
+
+    @Override
+    void write(CompactFormat.Writer out){
+        out.writeInt(num_classes);
+        out.writeInts(member_nodes);
+        out.writeInts(node_atts);
+        out.writeInts(node_num_values);
+        out.writeInts(node_offsets);
+        out.writeInts(class_steps);
+        out.writeInts(parent_starts);
+        out.writeInts(parent_nodes);
+        out.writeInts(parent_strides);
+        out.writeInts(replacements);
+        out.writeInts(cut_starts);
+        out.writeDoubles(cuts);
+        out.writeBytes(binned);
+        out.writeTable(tables, float_tables);
+    }
+
+    @Override
+    int numMembers(){
+        return member_nodes.limit()-1;
+    }
+
+    @Override
+    int kind(){
+        return CompactFormat.BAYES_NET;
+    }
+
+    //Cut points the member discretizes the j-th attribute it sees with, null if it isn't discretized (or ends up in a single bin)
+    private static double[] cutPoints(BayesNet net, Instances header, int j){
+        if (net.m_DiscretizeFilter==null || !header.attribute(j).isNumeric())
+            return null;
+        return net.m_DiscretizeFilter.getCutPoints(j);
+    }
+
+    @Override
+    void addDistributions(Instance instance, double[] prob, int first_member, int last_member){
+        boolean sparse = instance instanceof SparseInstance;
+        double[] values = sparse? null : instance.toDoubleArray();
+        int[] node_values = new int[max_nodes];
+        double[] log_probs = new double[num_classes];
+
+        for (int m = first_member; m<last_member; ++m){
+            int first = member_nodes.get(m), last = member_nodes.get(m+1);
+
+            //Value index of every node, as the member's filters would leave it
+            for (int t = first; t<last; ++t){
+                int att = node_atts.get(t);
+                if (att<0)
+                    continue;
+
+                double value = sparse? instance.value(att) : values[att];
+                if (Utils.isMissingValue(value))
+                    node_values[t-first] = replacements.get(t);
+                else if (binned.get(t)!=0)
+                    node_values[t-first] = bin(value, t);
+                else
+                    node_values[t-first] = (int) value;
+            }
+
+            //Add the log-probability of every node for every class
+            Arrays.fill(log_probs, 0.0);
+            for (int t = first; t<last; ++t){
+                int cpt = 0;
+                for (int p = parent_starts.get(t); p<parent_starts.get(t+1); ++p)
+                    cpt += node_values[parent_nodes.get(p)]*parent_strides.get(p);
+
+                int base = node_offsets.get(t) + cpt*node_num_values.get(t) + (node_atts.get(t)<0? 0 : node_values[t-first]);
+                int step = class_steps.get(t);
+                if (float_tables!=null){
+                    for (int c = 0; c<num_classes; ++c)
+                        log_probs[c] += float_tables.get(base + c*step);
+                }
+                else{
+                    for (int c = 0; c<num_classes; ++c)
+                        log_probs[c] += tables.get(base + c*step);
+                }
+            }
+
+            addNormalized(log_probs, 0, prob);
+        }
+    }
+
+    //The batch member by member, over blocks of rows: the node values of a block are found first, then each table is walked
+    //for all its rows before the next one. The nodes are added in the order of the row path, so both give the same distributions
+    @Override
+    void addDistributions(Instances batch, int from, int to, double[][] prob){
+        double[][] columns = new double[batch.numAttributes()][BLOCK_ROWS];
+        int[] node_values = new int[max_nodes*BLOCK_ROWS];//Values of node t-first from position (t-first)*BLOCK_ROWS
+        double[] log_probs = new double[BLOCK_ROWS*num_classes];
+
+        for (int start = from; start<to; start += BLOCK_ROWS){
+            int end = Math.min(to, start+BLOCK_ROWS), rows = end-start;
+            gather(batch, start, end, columns);
+
+            for (int m = 0; m<numMembers(); ++m){
+                int first = member_nodes.get(m), last = member_nodes.get(m+1);
+
+                for (int t = first; t<last; ++t){
+                    int att = node_atts.get(t);
+                    if (att<0)
+                        continue;
+
+                    double[] column = columns[att];
+                    int at = (t-first)*BLOCK_ROWS, replacement = replacements.get(t);
+                    boolean is_binned = binned.get(t)!=0;
+                    for (int r = 0; r<rows; ++r){
+                        double value = column[r];
+                        if (Utils.isMissingValue(value))
+                            node_values[at+r] = replacement;
+                        else if (is_binned)
+                            node_values[at+r] = bin(value, t);
+                        else
+                            node_values[at+r] = (int) value;
+                    }
+                }
+
+                Arrays.fill(log_probs, 0, rows*num_classes, 0.0);
+                for (int t = first; t<last; ++t){
+                    int parents_from = parent_starts.get(t), parents_to = parent_starts.get(t+1);
+                    int offset = node_offsets.get(t), num_values = node_num_values.get(t), step = class_steps.get(t);
+                    int at = (node_atts.get(t)<0)? -1 : (t-first)*BLOCK_ROWS;
+
+                    for (int r = 0; r<rows; ++r){
+                        int cpt = 0;
+                        for (int p = parents_from; p<parents_to; ++p)
+                            cpt += node_values[parent_nodes.get(p)*BLOCK_ROWS+r]*parent_strides.get(p);
+
+                        int base = offset + cpt*num_values + (at<0? 0 : node_values[at+r]);
+                        if (float_tables!=null){
+                            for (int c = 0; c<num_classes; ++c)
+                                log_probs[r*num_classes+c] += float_tables.get(base + c*step);
+                        }
+                        else{
+                            for (int c = 0; c<num_classes; ++c)
+                                log_probs[r*num_classes+c] += tables.get(base + c*step);
+                        }
+                    }
+                }
+
+                for (int r = 0; r<rows; ++r)
+                    addNormalized(log_probs, r*num_classes, prob[start+r]);
+            }
+        }
+    }
+
+    //Back from log-space, the log-probabilities of a member from position at, and added normalized to prob;
+    //a member that can't be normalized predicts nothing
+    private void addNormalized(double[] log_probs, int at, double[] prob){
+        double max = log_probs[at];
+        for (int c = 0; c<num_classes; ++c){
+            if (log_probs[at+c]>max)
+                max = log_probs[at+c];
+        }
+
+        double sum = 0.0;
+        for (int c = 0; c<num_classes; ++c){
+            log_probs[at+c] = Math.exp(log_probs[at+c]-max);
+            sum += log_probs[at+c];
+        }
+        if (Double.isNaN(sum) || sum==0)
+            return;
+
+        for (int c = 0; c<num_classes; ++c)
+            prob[c] += log_probs[at+c]/sum;
+    }
+
+    //Bin of a value of node t between its cut points
+    private int bin(double value, int t){
+        return bin(value, cuts, cut_starts.get(t), cut_starts.get(t+1));
+    }
+}
@@ -0,0 +1,103 @@
+package weka.classifiers.bayes;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+/**
+ * Bootstrap samples represented as the number of times each instance is drawn, so the training data is never copied as a whole.
+ * Projected instances keep the representation of the original: a sparse instance is projected by walking only the values
+ * it stores, into a sparse instance.
+ *
+ * @author Kindo
+ */
+class Bootstrap {
+
+    //Number of times each of the n instances is drawn, exactly as the Resample filter (with replacement) draws them with the same seed
+    static int[] counts(int n, double sample_percent, int seed){
+        int[] counts = new int[n];
+
+        int sample_size = (int) (n * sample_percent / 100);
+        Random random = new Random(seed);
+        for (int i = 0; i<sample_size; ++i)
+            counts[random.nextInt(n)]++;
+
+        return counts;
+    }
+
+    //Total number of instances in the sample
+    static int size(int[] counts){
+        int size = 0;
+        for (int count : counts)
+            size += count;
+        return size;
+    }
+
+    //The sample as instances, each drawn instance repeated as many times as it was drawn. The copies are shallow, so they share the values of the original
+    static Instances replicate(Instances data, int[] counts){
+        Instances sample = new Instances(data, size(counts));
+        for (int row = 0; row<counts.length; ++row){
+            for (int k = 0; k<counts[row]; ++k)
+                sample.add(data.instance(row));
+        }
+        return sample;
+    }
+
+    /*
+        The sample projected onto some attributes (indices into data, in order), with the format of header.
+        Only the projected values of each distinct drawn instance are copied, and the instance is then either added once
+        weighted by the number of times it was drawn, or repeated as shallow copies that share those values.
+    */
+    static Instances project(Instances data, int[] counts, int[] projection, Instances header, boolean weighted){
+        Instances sample = new Instances(header, 0);
+        for (int row = 0; row<counts.length; ++row){
+            if (counts[row]==0)
+                continue;
+
+            Instance original = data.instance(row);
+            if (weighted){
+                sample.add(project(original, projection, original.weight()*counts[row]));
+            }
+            else{
+                Instance projected = project(original, projection, original.weight());
+                for (int k = 0; k<counts[row]; ++k)
+                    sample.add(projected);
+            }
+        }
+        return sample;
+    }
+
+    //An instance projected onto some attributes (indices into its dataset, in order), without a dataset
+    static Instance project(Instance original, int[] projection, double weight){
+        if (!(original instanceof SparseInstance)){
+            double[] values = new double[projection.length];
+            for (int att = 0; att<projection.length; ++att)
+                values[att] = original.value(projection[att]);
+            return new DenseInstance(weight, values);
+        }
+
+        //Both the stored values and the projection are in the order of the attributes, walk them together
+        int stored = original.numValues();
+        double[] values = new double[Math.min(stored, projection.length)];
+        int[] indices = new int[values.length];
+        int count = 0;
+        for (int k = 0, att = 0; k<stored && att<projection.length; ){
+            int index = original.index(k);
+            if (index<projection[att])
+                ++k;
+            else if (index>projection[att])
+                ++att;
+            else{
+                values[count] = original.valueSparse(k);
+                indices[count++] = att;
+                ++k;
+                ++att;
+            }
+        }
+        return new SparseInstance(weight, Arrays.copyOf(values, count), Arrays.copyOf(indices, count), projection.length);
+    }
+}
@@ -0,0 +1,188 @@
+package weka.classifiers.bayes;
+
+import java.util.Arrays;
+
+import weka.core.ContingencyTables;
+import weka.core.Utils;
+
+/**
+ * Pairwise correlations used by the CFS merit, computed one pair at a time when first needed and cached.
+ * They are computed here from discretized columns, with the same formulas CfsSubsetEval uses for a nominal class, instead
+ * of reading them from a trained CfsSubsetEval (it only exposes the merit of whole subsets).
+ * Reading the cache is safe from several threads: a racing thread can only compute and store the same value.
+ *
+ * @author Kindo
+ */
+abstract class CfsCorrelations {
+
+    //Value of a pair that hasn't been computed yet (same marker CfsSubsetEval uses)
+    private static final float UNKNOWN = -999;
+
+    //Index of the class attribute
+    final int class_index;
+
+    //Lower triangular matrix of correlations, indexed [larger][smaller]
+    private final float[][] matrix;
+
+    CfsCorrelations(int num_attributes, int class_index){
+        this.class_index = class_index;
+
+        matrix = new float[num_attributes][];
+        for (int i = 0; i<matrix.length; ++i){
+            matrix[i] = new float[i];
+            Arrays.fill(matrix[i], UNKNOWN);
+        }
+    }
+
+    //Correlation between two different attributes (either of them can be the class)
+    float get(int a, int b) throws Exception{
+        int larger = Math.max(a, b), smaller = Math.min(a, b);
+
+        float corr = matrix[larger][smaller];
+        if (corr == UNKNOWN){
+            //Same argument order as CfsSubsetEval.evaluateSubset: (attribute, class) or (larger, smaller)
+            if (a == class_index || b == class_index)
+                corr = compute(a == class_index? b : a, class_index);
+            else
+                corr = compute(larger, smaller);
+
+            matrix[larger][smaller] = corr;
+        }
+
+        return corr;
+    }
+
+    //Compute the correlation of a pair
+    abstract float compute(int att1, int att2) throws Exception;
+
+    //Standard deviation of an attribute (1 for every attribute when the class is nominal)
+    abstract double stdDev(int att);
+
+    /*
+        Symmetrical uncertainty over data discretized once, where each instance counts as many times as its weight.
+        The numeric attributes are discretized once over the whole training data (see DiscreteColumns), not over each
+        sample: with the bootstrap multiplicities as weights, the contingency tables are the ones CfsSubsetEval would
+        build from the bootstrap sample if it used those shared cut points, not the cut points it would learn from the
+        sample itself. Nominal attributes give the same tables either way. The sample isn't copied or discretized again.
+        Without weights every instance counts once: over the columns of a member's sample (or of the training data)
+        these are the correlations of a CfsSubsetEval trained with it.
+    */
+    static class Weighted extends CfsCorrelations{
+
+        //Discretized training data
+        private final DiscreteColumns columns;
+
+        //Number of times each instance is counted, null for once each
+        private final int[] weights;
+
+        Weighted(DiscreteColumns columns, int[] weights){
+            super(columns.num_values.length, columns.class_index);
+            this.columns = columns;
+            this.weights = weights;
+        }
+
+        @Override
+        double stdDev(int att){
+            return 1.0;
+        }
+
+        //Same computation as CfsSubsetEval.symmUncertCorr, with weighted counts
+        @Override
+        float compute(int att1, int att2){
+            boolean flag = (att1 == class_index || att2 == class_index);
+
+            int ni = columns.num_values[att1] + 1;//Last value for missing
+            int nj = columns.num_values[att2] + 1;
+            double[][] counts = new double[ni][nj];
+            double[] sumi = new double[ni];
+            double[] sumj = new double[nj];
+            double sum = 0.0, temp;
+            int i, j;
+
+            //Fill the contingency table, skipping the instances without class as CfsSubsetEval does
+            int[] values1 = columns.values[att1], values2 = columns.values[att2], classes = columns.values[class_index];
+            int missing_class = columns.num_values[class_index];
+            double num_instances = 0.0;
+            for (int row = 0; row<classes.length; ++row){
+                int weight = (weights!=null)? weights[row] : 1;
+                if (weight==0 || classes[row]==missing_class)
+                    continue;
+                counts[values1[row]][values2[row]] += weight;
+                num_instances += weight;
+            }
+
+            //Row and column totals
+            for (i = 0; i < ni; i++){
+                for (j = 0; j < nj; j++){
+                    sumi[i] += counts[i][j];
+                    sum += counts[i][j];
+                }
+            }
+            for (j = 0; j < nj; j++){
+                for (i = 0; i < ni; i++)
+                    sumj[j] += counts[i][j];
+            }
+
+            //Distribute missing counts
+            if ((sumi[ni - 1] < num_instances) && (sumj[nj - 1] < num_instances)){
+                double[] i_copy = sumi.clone();
+                double[] j_copy = sumj.clone();
+                double[][] counts_copy = new double[ni][];
+                for (i = 0; i < ni; i++)
+                    counts_copy[i] = counts[i].clone();
+
+                double total_missing = (sumi[ni - 1] + sumj[nj - 1] - counts[ni - 1][nj - 1]);
+
+                //The missing i's
+                if (sumi[ni - 1] > 0.0){
+                    for (j = 0; j < nj - 1; j++){
+                        if (counts[ni - 1][j] > 0.0){
+                            for (i = 0; i < ni - 1; i++){
+                                temp = ((i_copy[i] / (sum - i_copy[ni - 1])) * counts[ni - 1][j]);
+                                counts[i][j] += temp;
+                                sumi[i] += temp;
+                            }
+                            counts[ni - 1][j] = 0.0;
+                        }
+                    }
+                }
+                sumi[ni - 1] = 0.0;
+
+                //The missing j's
+                if (sumj[nj - 1] > 0.0){
+                    for (i = 0; i < ni - 1; i++){
+                        if (counts[i][nj - 1] > 0.0){
+                            for (j = 0; j < nj - 1; j++){
+                                temp = ((j_copy[j] / (sum - j_copy[nj - 1])) * counts[i][nj - 1]);
+                                counts[i][j] += temp;
+                                sumj[j] += temp;
+                            }
+                            counts[i][nj - 1] = 0.0;
+                        }
+                    }
+                }
+                sumj[nj - 1] = 0.0;
+
+                //Both missing
+                if (counts[ni - 1][nj - 1] > 0.0 && total_missing != sum){
+                    for (i = 0; i < ni - 1; i++){
+                        for (j = 0; j < nj - 1; j++){
+                            temp = (counts_copy[i][j] / (sum - total_missing)) * counts_copy[ni - 1][nj - 1];
+                            counts[i][j] += temp;
+                            sumi[i] += temp;
+                            sumj[j] += temp;
+                        }
+                    }
+                    counts[ni - 1][nj - 1] = 0.0;
+                }
+            }
+
+            double corr_measure = ContingencyTables.symmetricalUncertainty(counts);
+
+            if (Utils.eq(corr_measure, 0.0))
+                return flag? 0.0f : 1.0f;
+
+            return (float) corr_measure;
+        }
+    }
+}
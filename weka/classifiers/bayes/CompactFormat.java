@@ -0,0 +1,237 @@
+package weka.classifiers.bayes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import weka.core.Instances;
+
+/**
+ * Compact binary format of a trained ensemble: the header of the training data, shared by every member, and the tables of
+ * its scorer as primitive arrays, with none of the classifiers, estimators and filters they were compiled from.
+ * Layout: magic number, version, kind of members, class index, the header as ARFF text, then the sections of the scorer.
+ * Every section is its length followed by its values, little-endian and aligned to 8 bytes, so it is read in place from
+ * the file mapped in memory. Probability tables are written as doubles or floats, after a flag telling which.
+ *
+ * @author Kindo
+ */
+class CompactFormat {
+
+    //First int of every file ("RBCF")
+    static final int MAGIC = 0x52424346;
+
+    //Version of the layout
+    static final int VERSION = 2;
+
+    /*Kinds of members*/
+
+    static final int NAIVE_BAYES = 0;
+    static final int BAYES_NET = 1;
+
+    //Byte order of the values
+    static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    //Every section starts at a multiple of this
+    private static final int ALIGNMENT = 8;
+
+    //Write a trained ensemble, its members of the given kind compiled into the scorer
+    static void write(File file, int kind, Instances header, EnsembleScorer scorer) throws IOException{
+        Writer out = new Writer();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(kind);
+        out.writeInt(header.classIndex());
+        out.writeBytes(ByteBuffer.wrap(new Instances(header, 0).toString().getBytes(StandardCharsets.UTF_8)));
+        scorer.write(out);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            ByteBuffer content = out.content();
+            while (content.hasRemaining())
+                channel.write(content);
+        }
+    }
+
+    //Map a file written by write. The mapping outlives the file being open, and is shared by every process mapping the same file
+    static CompactModel map(File file) throws IOException{
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        Reader in = new Reader(buffer);
+        if (buffer.remaining()<4*4 || in.readInt()!=MAGIC)
+            throw new IOException("Not a compact model: "+file);
+        int version = in.readInt();
+        if (version!=VERSION)
+            throw new IOException("Unknown version of the compact format: "+version);
+
+        int kind = in.readInt();
+        int class_index = in.readInt();
+        Instances header = new Instances(new StringReader(StandardCharsets.UTF_8.decode(in.bytes()).toString()));
+        header.setClassIndex(class_index);
+
+        if (kind!=NAIVE_BAYES && kind!=BAYES_NET)
+            throw new IOException("Unknown kind of members: "+kind);
+        return new CompactModel(header, EnsembleScorer.read(kind, in));
+    }
+
+    //Sections written into a growing buffer
+    static class Writer {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(1<<16).order(ORDER);
+
+        void writeInt(int value){
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void writeInts(IntBuffer values){
+            int count = values.limit();
+            section(count, 4);
+            buffer.asIntBuffer().put((IntBuffer) ((Buffer) values.duplicate()).rewind());
+            advance(4*count);
+        }
+
+        void writeDoubles(DoubleBuffer values){
+            int count = values.limit();
+            section(count, 8);
+            buffer.asDoubleBuffer().put((DoubleBuffer) ((Buffer) values.duplicate()).rewind());
+            advance(8*count);
+        }
+
+        void writeFloats(FloatBuffer values){
+            int count = values.limit();
+            section(count, 4);
+            buffer.asFloatBuffer().put((FloatBuffer) ((Buffer) values.duplicate()).rewind());
+            advance(4*count);
+        }
+
+        //A probability table, in double precision or quantized to floats (one of them null)
+        void writeTable(DoubleBuffer doubles, FloatBuffer floats){
+            writeInt((floats!=null)? 1 : 0);
+            if (floats!=null)
+                writeFloats(floats);
+            else
+                writeDoubles(doubles);
+        }
+
+        void writeBytes(ByteBuffer values){
+            int count = values.limit();
+            section(count, 1);
+            buffer.put((ByteBuffer) ((Buffer) values.duplicate()).rewind());
+            align();
+        }
+
+        //Length of the section, and room for its values from an aligned position
+        private void section(int count, int size){
+            writeInt(count);
+            align();
+            ensure((long) count*size + ALIGNMENT);
+        }
+
+        //Skip the values just put through a view
+        private void advance(int bytes){
+            ((Buffer) buffer).position(buffer.position()+bytes);
+            align();
+        }
+
+        private void align(){
+            while (buffer.position()%ALIGNMENT!=0)
+                buffer.put((byte) 0);
+        }
+
+        private void ensure(long bytes){
+            if (buffer.remaining()>=bytes)
+                return;
+
+            long capacity = Math.max(2L*buffer.capacity(), buffer.position()+bytes);
+            if (capacity>Integer.MAX_VALUE)
+                throw new IllegalStateException("Model too large for the compact format");
+
+            ByteBuffer larger = ByteBuffer.allocate((int) capacity).order(ORDER);
+            ((Buffer) buffer).flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+
+        //Everything written so far
+        private ByteBuffer content(){
+            ByteBuffer content = buffer.duplicate();
+            ((Buffer) content).flip();
+            return content;
+        }
+
+        byte[] toByteArray(){
+            ByteBuffer content = content();
+            byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            return bytes;
+        }
+    }
+
+    //Sections read in place, as views of the buffer
+    static class Reader {
+
+        private final ByteBuffer buffer;
+
+        Reader(ByteBuffer buffer){
+            this.buffer = buffer.order(ORDER);
+        }
+
+        int readInt(){
+            return buffer.getInt();
+        }
+
+        IntBuffer ints(){
+            int count = readInt();
+            return section(4L*count).asIntBuffer();
+        }
+
+        DoubleBuffer doubles(){
+            int count = readInt();
+            return section(8L*count).asDoubleBuffer();
+        }
+
+        FloatBuffer floats(){
+            int count = readInt();
+            return section(4L*count).asFloatBuffer();
+        }
+
+        //A table written by writeTable: true if it was quantized to floats, the table is then read by floats and by doubles otherwise
+        boolean quantized(){
+            return readInt()!=0;
+        }
+
+        ByteBuffer bytes(){
+            int count = readInt();
+            return section(count);
+        }
+
+        //View of the next bytes of the buffer, from an aligned position
+        private ByteBuffer section(long bytes){
+            align();
+            if (bytes>buffer.remaining())
+                throw new IllegalStateException("Truncated compact model");
+
+            ByteBuffer view = buffer.slice().order(ORDER);
+            ((Buffer) view).limit((int) bytes);
+            ((Buffer) buffer).position(buffer.position()+(int) bytes);
+            align();
+            return view;
+        }
+
+        private void align(){
+            int aligned = (buffer.position()+ALIGNMENT-1)/ALIGNMENT*ALIGNMENT;
+            ((Buffer) buffer).position(Math.min(aligned, buffer.limit()));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package weka.classifiers.bayes;
+
+import java.io.File;
+import java.io.IOException;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * A trained RandomBayes or RandomTAN loaded from the compact format (see writeCompact), only to predict.
+ * The file is mapped in memory and the tables are read from it in place: loading builds no classifier, estimator or filter,
+ * so it takes the same time for any number of members, and every process loading the same file shares its pages.
+ * The predictions are the ones of the classifier that wrote the file.
+ *
+ * @author Kindo
+ */
+public class CompactModel {
+
+    //Header of the training data
+    private final Instances header;
+
+    //Tables of the members, mapped from the file
+    private final EnsembleScorer scorer;
+
+    CompactModel(Instances header, EnsembleScorer scorer){
+        this.header = header;
+        this.scorer = scorer;
+    }
+
+    //Load a model written by RandomBayes.writeCompact or RandomTAN.writeCompact
+    public static CompactModel map(File file) throws IOException{
+        return CompactFormat.map(file);
+    }
+
+    //Header of the data the model was trained with
+    public Instances getHeader(){
+        return header;
+    }
+
+    //Number of classifiers in the bag
+    public int numMembers(){
+        return scorer.numMembers();
+    }
+
+    //Give the probability of an instance to belong to each possible class
+    public double[] distributionForInstance(Instance instance){
+        double[] prob = new double[header.numClasses()];
+        scorer.addDistributions(instance, prob);
+
+        for (int cnt = 0; cnt<prob.length; ++cnt)//Normalize the probability, so the sum of all is 1
+            prob[cnt]/=scorer.numMembers();
+
+        return prob;
+    }
+
+    //Give the distributions of a whole batch of instances
+    public double[][] distributionsForInstances(Instances batch){
+        double[][] prob = new double[batch.numInstances()][];
+        for (int row = 0; row<prob.length; ++row)
+            prob[row] = distributionForInstance(batch.instance(row));
+        return prob;
+    }
+
+    //Give the most probable class of an instance
+    public double classifyInstance(Instance instance){
+        return Utils.maxIndex(distributionForInstance(instance));
+    }
+}
@@ -0,0 +1,98 @@
+package weka.classifiers.bayes;
+
+import java.util.Arrays;
+
+/**
+ * Class-conditional mutual information between pairs of attributes, the weight Friedman et al. build the TAN tree with,
+ * over data discretized once (see DiscreteColumns) and computed one pair at a time when first needed and cached.
+ * Each instance counts as many times as its weight: with the bootstrap multiplicities of a member it is the information
+ * of that member's sample, without weights every instance counts once and one table serves every member.
+ * Instances missing the class or either value are left out of a pair.
+ * Reading the cache is safe from several threads: a racing thread can only compute and store the same value.
+ *
+ * @author Kindo
+ */
+class ConditionalMutualInformation {
+
+    //Value of a pair that hasn't been computed yet
+    private static final float UNKNOWN = -1;
+
+    //Discretized training data
+    private final DiscreteColumns columns;
+
+    //Number of times each instance is counted, null to count every instance once
+    private final int[] weights;
+
+    //Attributes covered (sorted), null for all of them
+    private final int[] atts;
+
+    //Lower triangular matrix of information, indexed [larger][smaller] by position in atts
+    private final float[][] matrix;
+
+    ConditionalMutualInformation(DiscreteColumns columns, int[] weights, int[] atts){
+        this.columns = columns;
+        this.weights = weights;
+        this.atts = atts;
+
+        matrix = new float[(atts!=null)? atts.length : columns.num_values.length][];
+        for (int i = 0; i<matrix.length; ++i){
+            matrix[i] = new float[i];
+            Arrays.fill(matrix[i], UNKNOWN);
+        }
+    }
+
+    //Information between two different attributes covered, neither of them the class
+    float get(int a, int b){
+        int pos_a = position(a), pos_b = position(b);
+        int larger = Math.max(pos_a, pos_b), smaller = Math.min(pos_a, pos_b);
+
+        float info = matrix[larger][smaller];
+        if (info == UNKNOWN){
+            info = compute(Math.max(a, b), Math.min(a, b));
+            matrix[larger][smaller] = info;
+        }
+
+        return info;
+    }
+
+    private int position(int att){
+        return (atts!=null)? Arrays.binarySearch(atts, att) : att;
+    }
+
+    //Sum over the values of both attributes and the class of p(x, y, c) log(p(x, y, c) p(c) / (p(x, c) p(y, c)))
+    private float compute(int att1, int att2){
+        int class_index = columns.class_index;
+        int n1 = columns.num_values[att1], n2 = columns.num_values[att2], nc = columns.num_values[class_index];
+        int[] values1 = columns.values[att1], values2 = columns.values[att2], classes = columns.values[class_index];
+
+        double[] joint = new double[n1*n2*nc];
+        double[] first = new double[n1*nc], second = new double[n2*nc], class_totals = new double[nc];
+        double total = 0.0;
+        for (int row = 0; row<classes.length; ++row){
+            int weight = (weights!=null)? weights[row] : 1;
+            int v1 = values1[row], v2 = values2[row], c = classes[row];
+            if (weight==0 || v1==n1 || v2==n2 || c==nc)//Missing values are coded as the number of values
+                continue;
+
+            joint[(v1*n2+v2)*nc+c] += weight;
+            first[v1*nc+c] += weight;
+            second[v2*nc+c] += weight;
+            class_totals[c] += weight;
+            total += weight;
+        }
+        if (total==0)
+            return 0.0f;
+
+        double info = 0.0;
+        for (int v1 = 0; v1<n1; ++v1){
+            for (int v2 = 0; v2<n2; ++v2){
+                for (int c = 0; c<nc; ++c){
+                    double count = joint[(v1*n2+v2)*nc+c];
+                    if (count>0)
+                        info += count*Math.log(count*class_totals[c]/(first[v1*nc+c]*second[v2*nc+c]));
+                }
+            }
+        }
+        return (float) (info/total);
+    }
+}
@@ -0,0 +1,52 @@
+package weka.classifiers.bayes;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.filters.Filter;
+import weka.filters.supervised.attribute.Discretize;
+
+/**
+ * Training data discretized once, the same way CfsSubsetEval discretizes it (supervised MDL with better encoding,
+ * cut points learned from the instances with a class), and stored column by column as value indices.
+ * A missing value is stored as the number of values of its attribute.
+ *
+ * @author Kindo
+ */
+class DiscreteColumns {
+
+    //Value index of each attribute (first index) for each instance (second index)
+    final int[][] values;
+
+    //Number of values of each attribute, also the code of a missing value
+    final int[] num_values;
+
+    //Index of the class attribute
+    final int class_index;
+
+    DiscreteColumns(Instances data) throws Exception{
+        class_index = data.classIndex();
+
+        //Learn the cut points without the instances that have no class
+        Instances train = new Instances(data);
+        train.deleteWithMissingClass();
+
+        Discretize disc = new Discretize();
+        disc.setUseBetterEncoding(true);
+        disc.setInputFormat(train);
+        Instances format = Filter.useFilter(train, disc);
+
+        num_values = new int[data.numAttributes()];
+        for (int att = 0; att<num_values.length; ++att)
+            num_values[att] = format.attribute(att).numValues();
+
+        //Discretize every instance, keeping the positions of the original data
+        values = new int[data.numAttributes()][data.numInstances()];
+        for (int row = 0; row<data.numInstances(); ++row){
+            disc.input(data.instance(row));
+            Instance discrete = disc.output();
+
+            for (int att = 0; att<num_values.length; ++att)
+                values[att][row] = discrete.isMissing(att)? num_values[att] : (int) discrete.value(att);
+        }
+    }
+}
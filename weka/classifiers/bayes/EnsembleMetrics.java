@@ -0,0 +1,205 @@
+package weka.classifiers.bayes;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation of the build and prediction of a RandomBayes or RandomTAN, turned on with -instrument.
+ * Building a member goes through the phases below, each one timed: discretizing the sample for the CFS correlations
+ * (or taking the correlations shared by the members), the forward selection of randomCFS, building the header with the
+ * Remove filter and training the classifier. The size of the subsets picked is counted, and the latency of every distributionForInstance goes into a histogram of powers of two.
+ * So does the latency of every range of rows of a batch scored by a thread (distributionsForInstances), counted once.
+ * Members are built from several threads at once, so every count is atomic. Each member built and each prediction is
+ * also a JDK Flight Recorder event (see FlightEvents) when the JVM has it.
+ * When the instrumentation is off the classifiers hold no metrics, and the only cost is checking for them.
+ *
+ * @author Kindo
+ */
+class EnsembleMetrics {
+
+    /*Phases of the build of a member*/
+
+    static final int BOOTSTRAP = 0;
+    static final int CFS_CORRELATIONS = 1;
+    static final int CFS_SELECTION = 2;
+    static final int REMOVE = 3;
+    static final int TRAINING = 4;
+
+    //Names of the phases, as shown in the snapshot and the events
+    static final String[] PHASES = {"bootstrap", "cfs correlations", "cfs selection", "remove", "training"};
+
+    //Flight Recorder events are available in this JVM
+    private static final boolean JFR = flightRecorder();
+
+    //Largest subset size counted on its own, larger ones share the last bucket
+    private static final int MAX_SUBSET_SIZE = 256;
+
+    //Name of the classifier, to tell the events of RandomBayes and RandomTAN apart
+    private final String ensemble;
+
+    //Members built
+    private final LongAdder members = new LongAdder();
+
+    //Total and longest time of each phase, over every member, in nanoseconds
+    private final LongAdder[] phase_nanos = new LongAdder[PHASES.length];
+    private final LongAccumulator[] phase_max = new LongAccumulator[PHASES.length];
+
+    //Members by the size of the subset they picked
+    private final AtomicLongArray subset_sizes = new AtomicLongArray(MAX_SUBSET_SIZE+1);
+
+    //Predictions by the power of two of their latency in nanoseconds, and the longest one
+    private final AtomicLongArray latencies = new AtomicLongArray(64);
+    private final LongAccumulator latency_max = new LongAccumulator(Math::max, 0);
+    private final LongAdder latency_nanos = new LongAdder();
+
+    //Ranges of rows of batches among the predictions, and their rows
+    private final LongAdder batch_ranges = new LongAdder(), batch_rows = new LongAdder();
+
+    EnsembleMetrics(String ensemble){
+        this.ensemble = ensemble;
+        for (int p = 0; p<PHASES.length; ++p){
+            phase_nanos[p] = new LongAdder();
+            phase_max[p] = new LongAccumulator(Math::max, 0);
+        }
+    }
+
+    //True if the JVM has Flight Recorder, FlightEvents can't even be loaded otherwise
+    private static boolean flightRecorder(){
+        try{
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (ClassNotFoundException | LinkageError ex){
+            return false;
+        }
+    }
+
+    //Start timing the build of a member
+    Member member(int member, int id){
+        return new Member(member, id);
+    }
+
+    //Time of a prediction made with the given number of members, from the System.nanoTime it started at
+    void predicted(long start, int num_members){
+        record(System.nanoTime()-start, num_members, 1);
+    }
+
+    //The same for a range of rows of a batch, scored at once
+    void predicted(long start, int num_members, int rows){
+        batch_ranges.increment();
+        batch_rows.add(rows);
+        record(System.nanoTime()-start, num_members, rows);
+    }
+
+    private void record(long nanos, int num_members, int rows){
+        latencies.incrementAndGet(63-Long.numberOfLeadingZeros(Math.max(1, nanos)));
+        latency_max.accumulate(nanos);
+        latency_nanos.add(nanos);
+
+        if (JFR)
+            FlightEvents.prediction(ensemble, num_members, rows, nanos);
+    }
+
+    //Text report of everything counted so far
+    String snapshot(){
+        StringBuilder text = new StringBuilder();
+        long built = members.sum();
+        text.append(ensemble).append(" metrics\n\n");
+        text.append("Members built: ").append(built).append("\n");
+
+        for (int p = 0; p<PHASES.length; ++p){
+            long total = phase_nanos[p].sum();
+            text.append("  ").append(PHASES[p]).append(": ").append(millis(total)).append(" ms total, ")
+                .append(millis((built>0)? total/built : 0)).append(" ms per member, ")
+                .append(millis(phase_max[p].get())).append(" ms max\n");
+        }
+
+        text.append("Subset sizes (size: members):");
+        for (int size = 0; size<subset_sizes.length(); ++size){
+            long count = subset_sizes.get(size);
+            if (count>0)
+                text.append(" ").append(size).append((size==MAX_SUBSET_SIZE)? "+" : "").append(": ").append(count);
+        }
+        text.append("\n");
+
+        long predictions = 0;
+        for (int b = 0; b<latencies.length(); ++b)
+            predictions += latencies.get(b);
+        text.append("\nPredictions: ").append(predictions);
+        if (batch_ranges.sum()>0)
+            text.append(" (").append(batch_ranges.sum()).append(" ranges of batches, ").append(batch_rows.sum()).append(" rows)");
+        if (predictions>0){
+            text.append(", mean ").append(micros(latency_nanos.sum()/predictions)).append(" us")
+                .append(", p50 < ").append(micros(percentile(predictions, 0.50))).append(" us")
+                .append(", p90 < ").append(micros(percentile(predictions, 0.90))).append(" us")
+                .append(", p99 < ").append(micros(percentile(predictions, 0.99))).append(" us")
+                .append(", max ").append(micros(latency_max.get())).append(" us\n");
+            text.append("Latency histogram (< us: predictions):");
+            for (int b = 0; b<latencies.length(); ++b){
+                if (latencies.get(b)>0)
+                    text.append(" ").append(micros(2L<<b)).append(": ").append(latencies.get(b));
+            }
+        }
+        text.append("\n");
+        return text.toString();
+    }
+
+    //Upper bound of the bucket the given fraction of the predictions falls into
+    private long percentile(long predictions, double fraction){
+        long seen = 0;
+        for (int b = 0; b<latencies.length(); ++b){
+            seen += latencies.get(b);
+            if (seen>=Math.ceil(fraction*predictions))
+                return 2L<<b;
+        }
+        return latency_max.get();
+    }
+
+    private static String millis(long nanos){
+        return String.format("%.3f", nanos/1e6);
+    }
+
+    private static String micros(long nanos){
+        return String.format("%.1f", nanos/1e3);
+    }
+
+    //Times of the phases of one member, each phase ending when the next one starts
+    class Member {
+
+        private final int member, id;
+        private final long[] nanos = new long[PHASES.length];
+        private long last = System.nanoTime();
+        private int subset_size;
+
+        private Member(int member, int id){
+            this.member = member;
+            this.id = id;
+        }
+
+        //The phase just ended
+        void lap(int phase){
+            long now = System.nanoTime();
+            nanos[phase] += now-last;
+            last = now;
+        }
+
+        //What the feature selection did
+        void selected(int size){
+            subset_size = size;
+        }
+
+        //The member is built, add it to the metrics
+        void done(){
+            members.increment();
+            for (int p = 0; p<PHASES.length; ++p){
+                phase_nanos[p].add(nanos[p]);
+                phase_max[p].accumulate(nanos[p]);
+            }
+            subset_sizes.incrementAndGet(Math.min(subset_size, MAX_SUBSET_SIZE));
+
+            if (JFR)
+                FlightEvents.memberBuilt(ensemble, member, id, nanos, subset_size);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package weka.classifiers.bayes;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * The members of an ensemble flattened into primitive tables (see NaiveBayesScorer and BayesNetScorer).
+ * The tables are buffers, either wrapping the arrays they were compiled into or read in place from a file in the compact
+ * format (see CompactFormat). Scoring only reads them, so a scorer can be used from several threads at once.
+ * A scorer is serialized as its sections in the compact format.
+ *
+ * @author Kindo
+ */
+abstract class EnsembleScorer implements Serializable {
+
+    //Number of members
+    abstract int numMembers();
+
+    //Add the distribution given by every member for the instance (an instance of the original data) to prob
+    void addDistributions(Instance instance, double[] prob){
+        addDistributions(instance, prob, 0, numMembers());
+    }
+
+    //Add the distributions given by the members [first_member, last_member) for the instance to prob
+    abstract void addDistributions(Instance instance, double[] prob, int first_member, int last_member);
+
+    //Rows the batch kernels score at once: the values of a block are read member after member, so they stay in the cache
+    static final int BLOCK_ROWS = 256;
+
+    //Add the distribution given by every member for each of the rows [from, to) of the batch to its row of prob
+    void addDistributions(Instances batch, int from, int to, double[][] prob){
+        for (int row = from; row<to; ++row)
+            addDistributions(batch.instance(row), prob[row]);
+    }
+
+    //Put the values of the rows [from, to) of the batch into columns, one per attribute (at most BLOCK_ROWS rows),
+    //so a member walks them all with each of its tables
+    static void gather(Instances batch, int from, int to, double[][] columns){
+        for (int row = from; row<to; ++row){
+            Instance instance = batch.instance(row);
+            for (int att = 0; att<columns.length; ++att)
+                columns[att][row-from] = instance.value(att);
+        }
+    }
+
+    //Bin of a value among the cut points [from, to) of cuts: the first cut point it doesn't exceed, as the Discretize filter assigns it
+    static int bin(double value, DoubleBuffer cuts, int from, int to){
+        int low = from, high = to;
+        while (low<high){
+            int mid = (low+high)>>>1;
+            if (value<=cuts.get(mid))
+                high = mid;
+            else
+                low = mid+1;
+        }
+        return low-from;
+    }
+
+    //Kind of members, as written in the compact format
+    abstract int kind();
+
+    //Write the tables, in the order the scorer reads them back
+    abstract void write(CompactFormat.Writer out);
+
+    //Scorer of the given kind of members, read from its sections
+    static EnsembleScorer read(int kind, CompactFormat.Reader in){
+        switch (kind){
+            case CompactFormat.NAIVE_BAYES:
+                return NaiveBayesScorer.read(in);
+            case CompactFormat.BAYES_NET:
+                return BayesNetScorer.read(in);
+            default:
+                throw new IllegalArgumentException("Unknown kind of members: "+kind);
+        }
+    }
+
+    //Buffers can't be serialized, the sections are serialized instead
+    Object writeReplace(){
+        CompactFormat.Writer out = new CompactFormat.Writer();
+        write(out);
+        return new Sections(kind(), out.toByteArray());
+    }
+
+    //Serialized form of a scorer
+    private static class Sections implements Serializable {
+
+        private final int kind;
+        private final byte[] content;
+
+        Sections(int kind, byte[] content){
+            this.kind = kind;
+            this.content = content;
+        }
+
+        Object readResolve(){
+            return read(kind, new CompactFormat.Reader(ByteBuffer.wrap(content)));
+        }
+    }
+}
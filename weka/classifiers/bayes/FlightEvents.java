@@ -0,0 +1,110 @@
+package weka.classifiers.bayes;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events of the instrumentation (see EnsembleMetrics), recorded along with the rest of a recording
+ * (java -XX:StartFlightRecording, jcmd JFR.start) and shown under Weka / Random ensembles in JDK Mission Control.
+ * Needs Java 11 to compile (the release the pom targets). Only used once EnsembleMetrics found jdk.jfr in the JVM, so
+ * the classifiers still run on the runtimes built without it.
+ *
+ * @author Kindo
+ */
+class FlightEvents {
+
+    static void memberBuilt(String ensemble, int member, int id, long[] nanos, int subset_size){
+        MemberBuild event = new MemberBuild();
+        if (!event.shouldCommit())
+            return;
+
+        event.ensemble = ensemble;
+        event.member = member;
+        event.seed = id;
+        event.bootstrap = nanos[EnsembleMetrics.BOOTSTRAP];
+        event.cfsCorrelations = nanos[EnsembleMetrics.CFS_CORRELATIONS];
+        event.cfsSelection = nanos[EnsembleMetrics.CFS_SELECTION];
+        event.remove = nanos[EnsembleMetrics.REMOVE];
+        event.training = nanos[EnsembleMetrics.TRAINING];
+        event.subsetSize = subset_size;
+        event.commit();
+    }
+
+    static void prediction(String ensemble, int num_members, int rows, long nanos){
+        Prediction event = new Prediction();
+        if (!event.shouldCommit())
+            return;
+
+        event.ensemble = ensemble;
+        event.members = num_members;
+        event.rows = rows;
+        event.latency = nanos;
+        event.commit();
+    }
+
+    @Name("weka.classifiers.bayes.MemberBuild")
+    @Label("Member Build")
+    @Category({"Weka", "Random ensembles"})
+    @Description("Phases of the build of one member of a RandomBayes or RandomTAN")
+    @StackTrace(false)
+    static class MemberBuild extends Event {
+
+        @Label("Ensemble")
+        String ensemble;
+
+        @Label("Member")
+        int member;
+
+        @Label("Seed index")
+        int seed;
+
+        @Label("Bootstrap")
+        @Timespan
+        long bootstrap;
+
+        @Label("CFS correlations")
+        @Timespan
+        long cfsCorrelations;
+
+        @Label("CFS selection")
+        @Timespan
+        long cfsSelection;
+
+        @Label("Remove")
+        @Timespan
+        long remove;
+
+        @Label("Training")
+        @Timespan
+        long training;
+
+        @Label("Subset size")
+        int subsetSize;
+    }
+
+    @Name("weka.classifiers.bayes.Prediction")
+    @Label("Prediction")
+    @Category({"Weka", "Random ensembles"})
+    @Description("One distributionForInstance of a RandomBayes or RandomTAN, or a range of rows of a batch scored at once")
+    @StackTrace(false)
+    static class Prediction extends Event {
+
+        @Label("Ensemble")
+        String ensemble;
+
+        @Label("Members")
+        int members;
+
+        @Label("Rows")
+        int rows;
+
+        @Label("Latency")
+        @Timespan
+        long latency;
+    }
+}
@@ -0,0 +1,85 @@
+package weka.classifiers.bayes;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+import weka.core.Instances;
+
+/**
+ * One consistent set of trained members of an ensemble: the classifiers, the attributes each one sees, the header of the
+ * data it was trained with, the seed it was built from and the scorer compiled from all of them.
+ * The arrays are filled while the set is being built and never changed once it is published, so a prediction reads the
+ * set once and a swap (growth, rotation) can't show it half of the old members and half of the new ones.
+ *
+ * @author Kindo
+ */
+class Members<C, S extends EnsembleScorer> implements Serializable {
+
+    //Classifiers
+    final C[] bag;
+
+    //Indices (in the training data) of the attributes used by each classifier, in the order the classifier sees them
+    final int[][] projections;
+
+    //Header of the data each classifier was trained with
+    final Instances[] headers;
+
+    //Index of the seed each classifier was built from (see memberSeed)
+    final int[] ids;
+
+    //The classifiers flattened into primitive tables, null if they can't be (or weren't compiled)
+    final S scorer;
+
+    //Set to be filled, with room for as many classifiers as the bag has
+    Members(C[] bag){
+        this(bag, new int[bag.length][], new Instances[bag.length], new int[bag.length], null);
+    }
+
+    private Members(C[] bag, int[][] projections, Instances[] headers, int[] ids, S scorer){
+        this.bag = bag;
+        this.projections = projections;
+        this.headers = headers;
+        this.ids = ids;
+        this.scorer = scorer;
+    }
+
+    //Number of classifiers
+    int size(){
+        return bag.length;
+    }
+
+    //The same classifiers with a scorer compiled from them
+    Members<C, S> withScorer(S new_scorer){
+        return new Members<>(bag, projections, headers, ids, new_scorer);
+    }
+
+    //Only the scorer, the attributes and the seeds of the classifiers, without the classifiers and their headers
+    Members<C, S> slim(){
+        @SuppressWarnings("unchecked")
+        C[] no_bag = (C[]) Array.newInstance(bag.getClass().getComponentType(), bag.length);
+        return new Members<>(no_bag, projections, new Instances[bag.length], ids, scorer);
+    }
+
+    //True if the classifiers were dropped, only their scorer is left
+    boolean isSlim(){
+        return bag.length>0 && bag[0]==null && scorer!=null;
+    }
+
+    //The first size classifiers, or these with room for more at the end, without scorer
+    Members<C, S> resize(int size){
+        return new Members<>(Arrays.copyOf(bag, size), Arrays.copyOf(projections, size), Arrays.copyOf(headers, size), Arrays.copyOf(ids, size), null);
+    }
+
+    //The same classifiers, with the one in each of the slots replaced by the next one of replacements, without scorer
+    Members<C, S> replace(int[] slots, Members<C, S> replacements){
+        Members<C, S> result = resize(size());
+        for (int j = 0; j<slots.length; ++j){
+            result.bag[slots[j]] = replacements.bag[j];
+            result.projections[slots[j]] = replacements.projections[j];
+            result.headers[slots[j]] = replacements.headers[j];
+            result.ids[slots[j]] = replacements.ids[j];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,139 @@
+package weka.classifiers.bayes;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.Buffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Estimate of the heap taken by the objects reachable from a model, for the reports of measureModelSize.
+ * Objects are walked through their fields, and each one is counted once however many paths reach it, so the parts of a
+ * model measured one after the other with the same ModelSize only add what the previous ones didn't already hold.
+ * The layout assumed is the usual one of a 64-bit JVM with compressed pointers: 12 bytes of header, 4 bytes per reference
+ * and objects padded to 8 bytes. JDK classes are walked through their public API (collections, maps, buffers), or counted
+ * without what they reach when they have none.
+ *
+ * @author Kindo
+ */
+class ModelSize {
+
+    private static final int HEADER = 12, ARRAY_HEADER = 16, REFERENCE = 4, PADDING = 8;
+
+    //Objects already counted
+    private final IdentityHashMap<Object, Boolean> visited = new IdentityHashMap<>();
+
+    //Bytes of the objects reachable from root not counted yet
+    long measure(Object root){
+        long total = 0;
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        push(root, pending);
+
+        while (!pending.isEmpty()){
+            Object object = pending.pop();
+            Class<?> type = object.getClass();
+
+            if (!type.isArray() && !type.getName().startsWith("java.")){//Walked through its fields, even when it is a collection too (Instances)
+                total += shallowSize(type);
+                pushFields(object, type, pending);
+            }
+            else if (type.isArray()){
+                total += arraySize(object);
+                if (!type.getComponentType().isPrimitive()){
+                    for (int j = 0; j<Array.getLength(object); ++j)
+                        push(Array.get(object, j), pending);
+                }
+            }
+            else if (object instanceof String){
+                total += shallowSize(type) + padded(ARRAY_HEADER + ((String) object).length());
+            }
+            else if (object instanceof Buffer){//Only heap buffers hold their values, a mapped one is the file
+                total += shallowSize(type);
+                Buffer buffer = (Buffer) object;
+                if (buffer.hasArray())
+                    push(buffer.array(), pending);
+            }
+            else if (object instanceof Collection){
+                total += shallowSize(type) + padded(ARRAY_HEADER + REFERENCE*((Collection<?>) object).size());
+                for (Object element : (Collection<?>) object)
+                    push(element, pending);
+            }
+            else if (object instanceof Map){
+                total += shallowSize(type) + padded(ARRAY_HEADER + REFERENCE*((Map<?, ?>) object).size());
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()){
+                    total += padded(HEADER + 3*REFERENCE + 4);//One node per entry
+                    push(entry.getKey(), pending);
+                    push(entry.getValue(), pending);
+                }
+            }
+            else//JDK internals can't be opened, they are counted on their own
+                total += shallowSize(type);
+        }
+        return total;
+    }
+
+    private void push(Object object, ArrayDeque<Object> pending){
+        if (object!=null && visited.put(object, Boolean.TRUE)==null)
+            pending.push(object);
+    }
+
+    //Queue the objects referenced by the fields of an object
+    private void pushFields(Object object, Class<?> type, ArrayDeque<Object> pending){
+        for (Class<?> c = type; c!=null; c = c.getSuperclass()){
+            for (Field field : c.getDeclaredFields()){
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive())
+                    continue;
+                try{
+                    field.setAccessible(true);
+                    push(field.get(object), pending);
+                }
+                catch (RuntimeException | IllegalAccessException ex){//Not readable, counted without what it references
+                }
+            }
+        }
+    }
+
+    //Bytes of an object of the class, without what it references
+    private static long shallowSize(Class<?> type){
+        long size = HEADER;
+        for (Class<?> c = type; c!=null; c = c.getSuperclass()){
+            for (Field field : c.getDeclaredFields()){
+                if (!Modifier.isStatic(field.getModifiers()))
+                    size += fieldSize(field.getType());
+            }
+        }
+        return padded(size);
+    }
+
+    private static long arraySize(Object array){
+        return padded(ARRAY_HEADER + (long) Array.getLength(array)*fieldSize(array.getClass().getComponentType()));
+    }
+
+    private static int fieldSize(Class<?> type){
+        if (type==long.class || type==double.class)
+            return 8;
+        if (type==int.class || type==float.class)
+            return 4;
+        if (type==short.class || type==char.class)
+            return 2;
+        if (type==byte.class || type==boolean.class)
+            return 1;
+        return REFERENCE;
+    }
+
+    private static long padded(long size){
+        return (size+PADDING-1)/PADDING*PADDING;
+    }
+
+    //Bytes in a readable unit
+    static String format(long bytes){
+        if (bytes<1024)
+            return bytes+" B";
+        if (bytes<1024*1024)
+            return String.format("%.1f KB", bytes/1024.0);
+        return String.format("%.1f MB", bytes/(1024.0*1024.0));
+    }
+}
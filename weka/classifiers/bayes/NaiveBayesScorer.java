@@ -0,0 +1,564 @@
+package weka.classifiers.bayes;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Statistics;
+import weka.core.Utils;
+import weka.estimators.DiscreteEstimator;
+import weka.estimators.Estimator;
+import weka.estimators.NormalEstimator;
+
+/**
+ * The NaiveBayes members of a RandomBayes flattened into primitive tables, so the posterior of every member is computed
+ * by one loop over the values of the instance, without projecting it or going through the estimators.
+ * Each attribute of each member is a term: nominal attributes (and numeric ones discretized by the member) keep the
+ * log-probability of every value for every class, numeric attributes keep the mean and standard deviation of every class.
+ * The factors are the same NaiveBayes.distributionForInstance multiplies, added up as logarithms, so the distributions
+ * equal the ones of the members up to rounding (see RandomEnsemble.compiledDifference), or up to float32 precision with -float.
+ * A sparse instance starts from the log-probabilities of every member for the instance of all 0, and only the terms of
+ * the values it stores replace their factor for 0 with their own one.
+ * When members are updated, a new scorer shares the layout of this one and only gets its own priors and tables, with those
+ * of the updated members written again (see updated). This one isn't changed, so the predictions using it aren't disturbed.
+ * Written in the compact format as its sections in the order of the fields.
+ *
+ * @author Kindo
+ */
+class NaiveBayesScorer extends EnsembleScorer {
+
+    /*Kinds of term*/
+
+    //Nominal attribute, value index into its log-probabilities
+    private static final byte NOMINAL = 0;
+
+    //Numeric attribute with a normal estimator per class
+    private static final byte NUMERIC = 1;
+
+    //Numeric attribute discretized by the member, bin into its log-probabilities
+    private static final byte BINNED = 2;
+
+    //Smallest factor of an attribute (same floor NaiveBayes uses)
+    private static final double MIN_FACTOR = 1e-75;
+
+    //Number of classes
+    private final int num_classes;
+
+    //Log-probability of each class for each member, [member*num_classes + class]
+    private final DoubleBuffer priors;
+
+    //The terms of member m are [member_terms[m], member_terms[m+1])
+    private final IntBuffer member_terms;
+
+    //Attribute (of the original data) read by each term
+    private final IntBuffer term_atts;
+
+    //Kind of each term
+    private final ByteBuffer term_kinds;
+
+    //Where each term starts in tables
+    private final IntBuffer term_offsets;
+
+    //Nominal and binned terms: log-probabilities [value*num_classes + class]. Numeric terms: mean and standard deviation of each class
+    //In double precision, or in float_tables when quantized to float32 (the other one is null)
+    private final DoubleBuffer tables;
+    private final FloatBuffer float_tables;
+
+    //Precision of each numeric term
+    private final DoubleBuffer precisions;
+
+    //Weight of the attribute of each term, the exponent of its factor
+    private final DoubleBuffer exponents;
+
+    //Cut points of each binned term are [cut_starts[t], cut_starts[t+1]) in cuts
+    private final IntBuffer cut_starts;
+    private final DoubleBuffer cuts;
+
+    //Built from the tables the first time a sparse instance is scored
+    private transient volatile SparseIndex sparse_index;
+
+    private NaiveBayesScorer(int num_classes, DoubleBuffer priors, IntBuffer member_terms, IntBuffer term_atts, ByteBuffer term_kinds,
+            IntBuffer term_offsets, DoubleBuffer tables, FloatBuffer float_tables, DoubleBuffer precisions, DoubleBuffer exponents, IntBuffer cut_starts, DoubleBuffer cuts){
+        this.num_classes = num_classes;
+        this.priors = priors;
+        this.member_terms = member_terms;
+        this.term_atts = term_atts;
+        this.term_kinds = term_kinds;
+        this.term_offsets = term_offsets;
+        this.tables = tables;
+        this.float_tables = float_tables;
+        this.precisions = precisions;
+        this.exponents = exponents;
+        this.cut_starts = cut_starts;
+        this.cuts = cuts;
+    }
+
+    //Flatten the trained members, each one seeing the attributes of its projection with the format of its header, with the tables quantized to float32 or not. Null if a member uses an estimator that can't be flattened (kernel estimators)
+    static NaiveBayesScorer compile(NaiveBayes[] bag, int[][] projections, Instances[] headers, boolean quantize){
+        int num_classes = bag[0].m_NumClasses;
+
+        //Count the terms and the size of the tables first
+        int num_terms = 0, table_size = 0, num_cuts = 0;
+        for (int m = 0; m<bag.length; ++m){
+            Instances format = bag[m].m_Instances;
+            for (int j = 0, attIndex = 0; j<format.numAttributes(); ++j){
+                if (j==format.classIndex())
+                    continue;
+
+                Estimator estimator = bag[m].m_Distributions[attIndex][0];
+                if (estimator instanceof DiscreteEstimator)
+                    table_size += ((DiscreteEstimator) estimator).getNumSymbols()*num_classes;
+                else if (estimator instanceof NormalEstimator)
+                    table_size += 2*num_classes;
+                else
+                    return null;
+
+                double[] member_cuts = binned(bag[m], headers[m], j)? bag[m].m_Disc.getCutPoints(j) : null;
+                if (member_cuts!=null)
+                    num_cuts += member_cuts.length;
+
+                ++num_terms;
+                ++attIndex;
+            }
+        }
+
+        int[] member_terms = new int[bag.length+1];
+        int[] term_atts = new int[num_terms];
+        byte[] term_kinds = new byte[num_terms];
+        int[] term_offsets = new int[num_terms];
+        double[] precisions = new double[num_terms];
+        double[] exponents = new double[num_terms];
+        int[] cut_starts = new int[num_terms+1];
+        double[] cuts = new double[num_cuts];
+
+        int t = 0, offset = 0, cut = 0;
+        for (int m = 0; m<bag.length; ++m){
+            NaiveBayes nb = bag[m];
+            member_terms[m] = t;
+            Instances format = nb.m_Instances;
+            for (int j = 0, attIndex = 0; j<format.numAttributes(); ++j){
+                if (j==format.classIndex())
+                    continue;
+
+                Estimator[] estimators = nb.m_Distributions[attIndex];
+                term_atts[t] = projections[m][j];
+                term_offsets[t] = offset;
+                exponents[t] = format.attribute(attIndex).weight();//Same attribute NaiveBayes takes the weight from
+                cut_starts[t] = cut;
+
+                if (estimators[0] instanceof NormalEstimator){
+                    term_kinds[t] = NUMERIC;
+                    precisions[t] = ((NormalEstimator) estimators[0]).getPrecision();
+                    offset += 2*num_classes;
+                }
+                else{
+                    offset += ((DiscreteEstimator) estimators[0]).getNumSymbols()*num_classes;
+
+                    if (binned(nb, headers[m], j)){
+                        term_kinds[t] = BINNED;
+                        double[] member_cuts = nb.m_Disc.getCutPoints(j);//Null when the attribute was turned into a single bin
+                        if (member_cuts!=null){
+                            System.arraycopy(member_cuts, 0, cuts, cut, member_cuts.length);
+                            cut += member_cuts.length;
+                        }
+                    }
+                    else
+                        term_kinds[t] = NOMINAL;
+                }
+
+                ++t;
+                ++attIndex;
+            }
+        }
+        member_terms[bag.length] = t;
+        cut_starts[num_terms] = cut;
+
+        NaiveBayesScorer scorer = new NaiveBayesScorer(num_classes, DoubleBuffer.allocate(bag.length*num_classes), IntBuffer.wrap(member_terms),
+                IntBuffer.wrap(term_atts), ByteBuffer.wrap(term_kinds), IntBuffer.wrap(term_offsets), quantize? null : DoubleBuffer.allocate(table_size),
+                quantize? FloatBuffer.allocate(table_size) : null, DoubleBuffer.wrap(precisions), DoubleBuffer.wrap(exponents),
+                IntBuffer.wrap(cut_starts), DoubleBuffer.wrap(cuts));
+        for (int m = 0; m<bag.length; ++m)
+            scorer.writeMember(m, bag[m]);
+        return scorer;
+    }
+
+    //Write the class priors and the tables of member m from its classifier, with the terms laid out by compile
+    private void writeMember(int m, NaiveBayes nb){
+        for (int c = 0; c<num_classes; ++c)
+            priors.put(m*num_classes+c, Math.log(nb.m_ClassDistribution.getProbability(c)));
+
+        Instances format = nb.m_Instances;
+        for (int j = 0, attIndex = 0, t = member_terms.get(m); j<format.numAttributes(); ++j){
+            if (j==format.classIndex())
+                continue;
+
+            Estimator[] estimators = nb.m_Distributions[attIndex];
+            int offset = term_offsets.get(t);
+            if (term_kinds.get(t)==NUMERIC){
+                for (int c = 0; c<num_classes; ++c){
+                    putTable(offset++, ((NormalEstimator) estimators[c]).getMean());
+                    putTable(offset++, ((NormalEstimator) estimators[c]).getStdDev());
+                }
+            }
+            else{
+                int num_values = ((DiscreteEstimator) estimators[0]).getNumSymbols();
+                for (int value = 0; value<num_values; ++value){
+                    for (int c = 0; c<num_classes; ++c)
+                        putTable(offset++, Math.log(Math.max(MIN_FACTOR, Math.pow(estimators[c].getProbability(value), exponents.get(t)))));
+                }
+            }
+
+            ++t;
+            ++attIndex;
+        }
+    }
+
+    /*
+        Scorer of the classifiers of the bag after the given members were updated. Only the counts of an updateable
+        NaiveBayes change, not the terms, so the new scorer shares every table of the layout with this one. It gets a copy
+        of the priors and the tables (and of the factors of 0, if this one has them) where only the updated members are
+        written again.
+    */
+    NaiveBayesScorer updated(BitSet members, NaiveBayes[] bag){
+        NaiveBayesScorer next = new NaiveBayesScorer(num_classes, copy(priors), member_terms, term_atts, term_kinds, term_offsets,
+                (tables!=null)? copy(tables) : null, (float_tables!=null)? copy(float_tables) : null, precisions, exponents, cut_starts, cuts);
+        for (int m = members.nextSetBit(0); m>=0; m = members.nextSetBit(m+1))
+            next.writeMember(m, bag[m]);
+
+        SparseIndex index = sparse_index;
+        if (index!=null)
+            next.sparse_index = next.new SparseIndex(index, members);
+        return next;
+    }
+
+    //Heap copies of the buffers, from their start
+    private static DoubleBuffer copy(DoubleBuffer buffer){
+        double[] values = new double[buffer.limit()];
+        ((DoubleBuffer) ((Buffer) buffer.duplicate()).rewind()).get(values);
+        return DoubleBuffer.wrap(values);
+    }
+
+    private static FloatBuffer copy(FloatBuffer buffer){
+        float[] values = new float[buffer.limit()];
+        ((FloatBuffer) ((Buffer) buffer.duplicate()).rewind()).get(values);
+        return FloatBuffer.wrap(values);
+    }
+
+    //Values rounded to float32
+    static float[] quantized(double[] values){
+        float[] result = new float[values.length];
+        for (int j = 0; j<values.length; ++j)
+            result[j] = (float) values[j];
+        return result;
+    }
+
+    //Scorer of the sections written by write, read in place
+    static NaiveBayesScorer read(CompactFormat.Reader in){
+        int num_classes = in.readInt();
+        DoubleBuffer priors = in.doubles();
+        IntBuffer member_terms = in.ints();
+        IntBuffer term_atts = in.ints();
+        ByteBuffer term_kinds = in.bytes();
+        IntBuffer term_offsets = in.ints();
+        boolean quantized = in.quantized();
+        DoubleBuffer tables = quantized? null : in.doubles();
+        FloatBuffer float_tables = quantized? in.floats() : null;
+
+        return new NaiveBayesScorer(num_classes, priors, member_terms, term_atts, term_kinds, term_offsets, tables, float_tables,
+                in.doubles(), in.doubles(), in.ints(), in.doubles());
+    }
+
+    @Override
+    void write(CompactFormat.Writer out){
+        out.writeInt(num_classes);
+        out.writeDoubles(priors);
+        out.writeInts(member_terms);
+        out.writeInts(term_atts);
+        out.writeBytes(term_kinds);
+        out.writeInts(term_offsets);
+        out.writeTable(tables, float_tables);
+        out.writeDoubles(precisions);
+        out.writeDoubles(exponents);
+        out.writeInts(cut_starts);
+        out.writeDoubles(cuts);
+    }
+
+    @Override
+    int numMembers(){
+        return member_terms.limit()-1;
+    }
+
+    @Override
+    int kind(){
+        return CompactFormat.NAIVE_BAYES;
+    }
+
+    //Value of the tables, in the precision they are kept
+    private double table(int j){
+        return (float_tables!=null)? float_tables.get(j) : tables.get(j);
+    }
+
+    private void putTable(int j, double value){
+        if (float_tables!=null)
+            float_tables.put(j, (float) value);
+        else
+            tables.put(j, value);
+    }
+
+    //True if the j-th attribute seen by the member was discretized by the member itself
+    private static boolean binned(NaiveBayes nb, Instances header, int j){
+        return nb.m_UseDiscretization && header.attribute(j).isNumeric();
+    }
+
+    @Override
+    void addDistributions(Instance instance, double[] prob, int first_member, int last_member){
+        if (instance instanceof SparseInstance){
+            addSparseDistributions(instance, prob, first_member, last_member);
+            return;
+        }
+
+        double[] values = instance.toDoubleArray();
+        double[] log_probs = new double[num_classes];
+
+        for (int m = first_member; m<last_member; ++m){
+            for (int c = 0; c<num_classes; ++c)
+                log_probs[c] = priors.get(m*num_classes+c);
+
+            for (int t = member_terms.get(m); t<member_terms.get(m+1); ++t){
+                double value = values[term_atts.get(t)];
+                if (!Utils.isMissingValue(value))//Missing values don't change the distribution
+                    addTerm(t, value, log_probs, 0);
+            }
+
+            addNormalized(log_probs, 0, prob);
+        }
+    }
+
+    //The batch member by member, over blocks of rows: each table is walked for all the rows of a block before the next one.
+    //The terms are added in the order of the row path, so both give the same distributions. Blocks with sparse rows are scored
+    //row by row, walking only the values they store
+    @Override
+    void addDistributions(Instances batch, int from, int to, double[][] prob){
+        double[][] columns = new double[batch.numAttributes()][BLOCK_ROWS];
+        double[] log_probs = new double[BLOCK_ROWS*num_classes];
+
+        for (int start = from; start<to; start += BLOCK_ROWS){
+            int end = Math.min(to, start+BLOCK_ROWS), rows = end-start;
+            if (hasSparse(batch, start, end)){
+                super.addDistributions(batch, start, end, prob);
+                continue;
+            }
+            gather(batch, start, end, columns);
+
+            for (int m = 0; m<numMembers(); ++m){
+                for (int r = 0; r<rows; ++r)
+                    for (int c = 0; c<num_classes; ++c)
+                        log_probs[r*num_classes+c] = priors.get(m*num_classes+c);
+
+                for (int t = member_terms.get(m); t<member_terms.get(m+1); ++t)
+                    addTerm(t, columns[term_atts.get(t)], rows, log_probs);
+
+                for (int r = 0; r<rows; ++r)
+                    addNormalized(log_probs, r*num_classes, prob[start+r]);
+            }
+        }
+    }
+
+    private static boolean hasSparse(Instances batch, int from, int to){
+        for (int row = from; row<to; ++row){
+            if (batch.instance(row) instanceof SparseInstance)
+                return true;
+        }
+        return false;
+    }
+
+
+    private void addSparseDistributions(Instance instance, double[] prob, int first_member, int last_member){
+        SparseIndex index = sparseIndex();
+        double[] log_probs = Arrays.copyOfRange(index.zero_log_probs, first_member*num_classes, last_member*num_classes);
+
+        for (int k = 0; k<instance.numValues(); ++k){
+            int att = instance.index(k);
+            if (att>=index.att_starts.length-1)
+                continue;
+
+            double value = instance.valueSparse(k);
+            for (int j = index.att_starts[att]; j<index.att_starts[att+1]; ++j){
+                int t = index.att_terms[j], m = index.term_members[t];
+                if (m<first_member || m>=last_member)
+                    continue;
+
+                //Take out the factor of the value 0, and put the one of the value instead (none if missing)
+                int at = (m-first_member)*num_classes;
+                for (int c = 0; c<num_classes; ++c)
+                    log_probs[at+c] -= index.zero_terms[t*num_classes+c];
+                if (!Utils.isMissingValue(value))
+                    addTerm(t, value, log_probs, at);
+            }
+        }
+
+        for (int m = first_member; m<last_member; ++m)
+            addNormalized(log_probs, (m-first_member)*num_classes, prob);
+    }
+
+    //Add the log-probability of the value of term t for every class, to log_probs from position at
+    private void addTerm(int t, double value, double[] log_probs, int at){
+        int offset = term_offsets.get(t);
+        switch (term_kinds.get(t)){
+            case NUMERIC:
+                addNormal(value, t, offset, log_probs, at);
+                break;
+            case BINNED:
+                offset += bin(value, t)*num_classes;
+                for (int c = 0; c<num_classes; ++c)
+                    log_probs[at+c] += table(offset+c);
+                break;
+            default:
+                offset += ((int) value)*num_classes;
+                for (int c = 0; c<num_classes; ++c)
+                    log_probs[at+c] += table(offset+c);
+        }
+    }
+
+    //The same for the first rows of a column, the log-probabilities of row r from position r*num_classes
+    private void addTerm(int t, double[] column, int rows, double[] log_probs){
+        int offset = term_offsets.get(t);
+        byte kind = term_kinds.get(t);
+
+        for (int r = 0; r<rows; ++r){
+            double value = column[r];
+            if (Utils.isMissingValue(value))//Missing values don't change the distribution
+                continue;
+
+            int at = r*num_classes;
+            if (kind==NUMERIC){
+                addNormal(value, t, offset, log_probs, at);
+                continue;
+            }
+
+            int row_offset = offset + ((kind==BINNED)? bin(value, t) : (int) value)*num_classes;
+            for (int c = 0; c<num_classes; ++c)
+                log_probs[at+c] += table(row_offset+c);
+        }
+    }
+
+    //Normalize the distribution of a member, the log-probabilities from position at, and add it
+    private void addNormalized(double[] log_probs, int at, double[] prob){
+        double max = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c<num_classes; ++c)
+            max = Math.max(max, log_probs[at+c]);
+
+        double sum = 0.0;
+        for (int c = 0; c<num_classes; ++c){
+            log_probs[at+c] = Math.exp(log_probs[at+c]-max);
+            sum += log_probs[at+c];
+        }
+        for (int c = 0; c<num_classes; ++c)
+            prob[c] += log_probs[at+c]/sum;
+    }
+
+    //Add the log-probability of a numeric value for every class, computed exactly as NormalEstimator.getProbability
+    private void addNormal(double value, int t, int offset, double[] log_probs, int at){
+        double precision = precisions.get(t);
+        double data = Math.rint(value / precision) * precision;
+
+        for (int c = 0; c<num_classes; ++c){
+            double mean = table(offset+2*c), std_dev = table(offset+2*c+1);
+            double zLower = (data - mean - (precision / 2)) / std_dev;
+            double zUpper = (data - mean + (precision / 2)) / std_dev;
+
+            double p = Statistics.normalProbability(zUpper) - Statistics.normalProbability(zLower);
+            if (exponents.get(t)!=1.0)
+                p = Math.pow(p, exponents.get(t));
+            log_probs[at+c] += Math.log(Math.max(MIN_FACTOR, p));
+        }
+    }
+
+    private SparseIndex sparseIndex(){
+        SparseIndex index = sparse_index;
+        if (index==null)//Racing threads build the same index, any of them can be kept
+            sparse_index = index = new SparseIndex();
+        return index;
+    }
+
+    //What scoring a sparse instance needs: the factors of the value 0 and the terms reading each attribute
+    private class SparseIndex {
+
+        //Log-probability of each class for each member when every value is 0, [member*num_classes + class]
+        final double[] zero_log_probs;
+
+        //Log-probability of the value 0 of each term for each class, [term*num_classes + class]
+        final double[] zero_terms;
+
+        //The terms reading attribute a are att_terms[att_starts[a]] to att_terms[att_starts[a+1]-1]
+        final int[] att_starts, att_terms;
+
+        //Member of each term
+        final int[] term_members;
+
+        SparseIndex(){
+            int num_members = numMembers(), num_terms = term_atts.limit();
+            zero_log_probs = new double[num_members*num_classes];
+            zero_terms = new double[num_terms*num_classes];
+            term_members = new int[num_terms];
+
+            int num_atts = 0;
+            for (int t = 0; t<num_terms; ++t)
+                num_atts = Math.max(num_atts, term_atts.get(t)+1);
+            att_starts = new int[num_atts+1];
+            att_terms = new int[num_terms];
+
+            for (int m = 0; m<num_members; ++m){
+                for (int t = member_terms.get(m); t<member_terms.get(m+1); ++t){
+                    term_members[t] = m;
+                    ++att_starts[term_atts.get(t)+1];
+                }
+                fillMember(m);
+            }
+
+            for (int a = 0; a<num_atts; ++a)
+                att_starts[a+1] += att_starts[a];
+            int[] next = Arrays.copyOf(att_starts, num_atts);
+            for (int t = 0; t<num_terms; ++t)
+                att_terms[next[term_atts.get(t)]++] = t;
+        }
+
+        //The index of another scorer with the same layout, with the factors of 0 of the given members computed again
+        SparseIndex(SparseIndex other, BitSet members){
+            zero_log_probs = other.zero_log_probs.clone();
+            zero_terms = other.zero_terms.clone();
+            att_starts = other.att_starts;
+            att_terms = other.att_terms;
+            term_members = other.term_members;
+
+            for (int m = members.nextSetBit(0); m>=0; m = members.nextSetBit(m+1))
+                fillMember(m);
+        }
+
+        //Compute the factors of the value 0 of member m from the tables
+        private void fillMember(int m){
+            for (int c = 0; c<num_classes; ++c)
+                zero_log_probs[m*num_classes+c] = priors.get(m*num_classes+c);
+
+            double[] log_probs = new double[num_classes];
+            for (int t = member_terms.get(m); t<member_terms.get(m+1); ++t){
+                Arrays.fill(log_probs, 0);
+                addTerm(t, 0, log_probs, 0);
+                System.arraycopy(log_probs, 0, zero_terms, t*num_classes, num_classes);
+                addTerm(t, 0, zero_log_probs, m*num_classes);//Added in the order of the terms, as the dense loop does
+            }
+        }
+    }
+
+    //Bin of a value of term t between its cut points
+    private int bin(double value, int t){
+        return bin(value, cuts, cut_starts.get(t), cut_starts.get(t+1));
+    }
+}
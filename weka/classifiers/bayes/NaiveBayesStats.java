@@ -0,0 +1,397 @@
+package weka.classifiers.bayes;
+
+import java.util.Arrays;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+import weka.estimators.DiscreteEstimator;
+import weka.estimators.Estimator;
+import weka.estimators.KernelEstimator;
+import weka.estimators.NormalEstimator;
+
+/**
+ * Training data of RandomBayes stored once as primitive columns, so a NaiveBayes member can be trained from a bootstrap
+ * (number of times each instance is drawn) and a subset of attributes without building its sample.
+ * Nominal attributes are aggregated into class x value counts, numeric ones are walked once in sorted order, so the
+ * estimators get the same values, weights and numeric precision NaiveBayes.buildClassifier would give them, up to the
+ * rounding of sums added in another order.
+ * Sparse data is stored as the values each instance keeps instead, and the weight of the value 0 is what is left of the
+ * weight of the drawn instances, so training only walks the values that aren't 0.
+ *
+ * @author Kindo
+ */
+class NaiveBayesStats {
+
+    //Number of classes
+    private final int num_classes;
+
+    //Class of each instance, -1 if missing
+    private final int[] classes;
+
+    //Weight of each instance
+    private final double[] weights;
+
+    //Value index of each nominal attribute for each instance, -1 if missing (null for numeric attributes)
+    private final int[][] nominal;
+
+    //Value of each numeric attribute for each instance (null for nominal attributes)
+    private final double[][] numeric;
+
+    //Instances with a value for each numeric attribute, sorted by that value. For sparse data, positions in the entries instead
+    private final int[][] sorted;
+
+    //Sparse data: the instances storing a value for each attribute (a value other than 0, or missing) in order, and those values. Null for dense data
+    private final int[][] entry_rows;
+    private final double[][] entry_values;
+
+    NaiveBayesStats(Instances data){
+        int n = data.numInstances();
+        num_classes = data.numClasses();
+
+        classes = new int[n];
+        weights = new double[n];
+        for (int row = 0; row<n; ++row){
+            Instance instance = data.instance(row);
+            classes[row] = instance.classIsMissing()? -1 : (int) instance.classValue();
+            weights[row] = instance.weight();
+        }
+
+        nominal = new int[data.numAttributes()][];
+        numeric = new double[data.numAttributes()][];
+        sorted = new int[data.numAttributes()][];
+
+        boolean sparse = n>0;
+        for (int row = 0; row<n && sparse; ++row)
+            sparse = data.instance(row) instanceof SparseInstance;
+        if (sparse){
+            entry_rows = new int[data.numAttributes()][];
+            entry_values = new double[data.numAttributes()][];
+            storeEntries(data);
+            return;
+        }
+        entry_rows = null;
+        entry_values = null;
+
+        for (int att = 0; att<data.numAttributes(); ++att){
+            if (att==data.classIndex())
+                continue;
+
+            if (data.attribute(att).isNominal()){
+                int[] column = new int[n];
+                for (int row = 0; row<n; ++row){
+                    Instance instance = data.instance(row);
+                    column[row] = instance.isMissing(att)? -1 : (int) instance.value(att);
+                }
+                nominal[att] = column;
+            }
+            else{
+                double[] column = data.attributeToDoubleArray(att);//Missing values are NaN, sorted last
+                int present = 0;
+                for (double value : column){
+                    if (!Utils.isMissingValue(value))
+                        ++present;
+                }
+
+                int[] present_order = new int[present];
+                int next = 0;
+                for (int row : Utils.sort(column)){
+                    if (!Utils.isMissingValue(column[row]))
+                        present_order[next++] = row;
+                }
+
+                numeric[att] = column;
+                sorted[att] = present_order;
+            }
+        }
+    }
+
+    //Keep the values stored by the sparse instances, by attribute, and sort those of the numeric attributes
+    private void storeEntries(Instances data){
+        int[] sizes = new int[data.numAttributes()];
+        for (Instance instance : data){
+            for (int k = 0; k<instance.numValues(); ++k)
+                ++sizes[instance.index(k)];
+        }
+
+        for (int att = 0; att<sizes.length; ++att){
+            entry_rows[att] = new int[sizes[att]];
+            entry_values[att] = new double[sizes[att]];
+        }
+
+        int[] next = new int[sizes.length];
+        for (int row = 0; row<data.numInstances(); ++row){
+            Instance instance = data.instance(row);
+            for (int k = 0; k<instance.numValues(); ++k){
+                int att = instance.index(k);
+                entry_rows[att][next[att]] = row;
+                entry_values[att][next[att]++] = instance.valueSparse(k);
+            }
+        }
+
+        for (int att = 0; att<sizes.length; ++att){
+            if (att==data.classIndex() || !data.attribute(att).isNumeric())
+                continue;
+
+            double[] values = entry_values[att];//Missing values are NaN, sorted last
+            int present = 0;
+            for (double value : values){
+                if (!Utils.isMissingValue(value))
+                    ++present;
+            }
+            sorted[att] = Arrays.copyOf(Utils.sort(values), present);
+        }
+    }
+
+    //Train a NaiveBayes with the drawn instances, seeing only the attributes of the projection (indices into the data, with the format of header)
+    NaiveBayes train(int[] counts, int[] projection, Instances header, boolean kernel, boolean old_format) throws Exception{
+        NaiveBayes nb = new NaiveBayes();
+        nb.setUseKernelEstimator(kernel);
+        nb.setDisplayModelInOldFormat(old_format);
+
+        //Weight of each instance in the sample, instances without class aren't used by NaiveBayes
+        double[] w = new double[counts.length];
+        for (int row = 0; row<counts.length; ++row){
+            if (counts[row]>0 && classes[row]>=0)
+                w[row] = counts[row]*weights[row];
+        }
+
+        double[] class_totals = new double[num_classes];
+        int drawn = 0;//Drawn instances with class
+        for (int row = 0; row<w.length; ++row){
+            if (w[row]!=0)
+                class_totals[classes[row]] += w[row];
+            if (counts[row]>0 && classes[row]>=0)
+                ++drawn;
+        }
+
+        DiscreteEstimator class_distribution = new DiscreteEstimator(num_classes, true);
+        for (int c = 0; c<num_classes; ++c){
+            if (class_totals[c]!=0)
+                class_distribution.addValue(c, class_totals[c]);
+        }
+
+        Estimator[][] distributions = new Estimator[header.numAttributes()-1][];
+        int attIndex = 0;
+        for (int j = 0; j<projection.length; ++j){
+            if (j==header.classIndex())
+                continue;
+
+            int att = projection[j];
+            if (entry_rows!=null && header.attribute(j).isNominal())
+                distributions[attIndex] = sparseNominalEstimators(att, header.attribute(j).numValues(), w, class_totals);
+            else if (entry_rows!=null)
+                distributions[attIndex] = sparseNumericEstimators(att, counts, w, class_totals, drawn, kernel);
+            else if (nominal[att]!=null)
+                distributions[attIndex] = nominalEstimators(att, header.attribute(j).numValues(), w);
+            else
+                distributions[attIndex] = numericEstimators(att, counts, w, kernel);
+            ++attIndex;
+        }
+
+        //Same state NaiveBayes.buildClassifier leaves behind
+        nb.m_NumClasses = num_classes;
+        nb.m_Instances = new Instances(header, 0);
+        nb.m_Disc = null;
+        nb.m_ClassDistribution = class_distribution;
+        nb.m_Distributions = distributions;
+
+        return nb;
+    }
+
+    //Estimators of a nominal attribute for each class, from its class x value counts
+    private Estimator[] nominalEstimators(int att, int num_values, double[] w){
+        int[] column = nominal[att];
+
+        double[][] table = new double[num_classes][num_values];
+        for (int row = 0; row<w.length; ++row){
+            if (w[row]!=0 && column[row]>=0)
+                table[classes[row]][column[row]] += w[row];
+        }
+
+        return discreteEstimators(table, num_values);
+    }
+
+    //The same from the stored values of sparse data, the weight of the value 0 is the weight of the rest of the drawn instances
+    private Estimator[] sparseNominalEstimators(int att, int num_values, double[] w, double[] class_totals){
+        int[] rows = entry_rows[att];
+        double[] values = entry_values[att];
+
+        double[][] table = new double[num_classes][num_values];
+        double[] zeros = class_totals.clone();
+        for (int k = 0; k<rows.length; ++k){
+            int row = rows[k];
+            if (w[row]==0)
+                continue;
+
+            zeros[classes[row]] -= w[row];
+            if (!Utils.isMissingValue(values[k]))
+                table[classes[row]][(int) values[k]] += w[row];
+        }
+        for (int c = 0; c<num_classes; ++c){
+            if (zeros[c]>0)
+                table[c][0] += zeros[c];
+        }
+
+        return discreteEstimators(table, num_values);
+    }
+
+    //Estimators of a nominal attribute for each class, from its class x value weights
+    private Estimator[] discreteEstimators(double[][] table, int num_values){
+        Estimator[] estimators = new Estimator[num_classes];
+        for (int c = 0; c<num_classes; ++c){
+            DiscreteEstimator estimator = new DiscreteEstimator(num_values, true);
+            for (int value = 0; value<num_values; ++value){
+                if (table[c][value]!=0)
+                    estimator.addValue(value, table[c][value]);
+            }
+            estimators[c] = estimator;
+        }
+
+        return estimators;
+    }
+
+    //Estimators of a numeric attribute for each class, adding every drawn value once with its total weight
+    private Estimator[] numericEstimators(int att, int[] counts, double[] w, boolean kernel){
+        double[] column = numeric[att];
+        int[] order = sorted[att];
+
+        //Precision from the differences between adjacent drawn values, exactly as NaiveBayes computes it
+        Precision precision = new Precision();
+        for (int row : order){
+            if (counts[row]>0 && classes[row]>=0)
+                precision.add(column[row]);
+        }
+
+        Estimator[] estimators = new Estimator[num_classes];
+        for (int c = 0; c<num_classes; ++c)
+            estimators[c] = kernel? new KernelEstimator(precision.get()) : new NormalEstimator(precision.get());
+
+        //Walk the values in order, merging the weights of equal values of each class
+        double[] pending = new double[num_classes];
+        double current = 0;
+        for (int row : order){
+            if (w[row]==0)
+                continue;
+
+            double value = column[row];
+            if (value!=current)
+                addPending(estimators, current, pending);
+            current = value;
+            pending[classes[row]] += w[row];
+        }
+        addPending(estimators, current, pending);
+
+        return estimators;
+    }
+
+    //The same from the stored values of sparse data, with the value 0 of the rest of the drawn instances walked in its place
+    private Estimator[] sparseNumericEstimators(int att, int[] counts, double[] w, double[] class_totals, int drawn, boolean kernel){
+        int[] rows = entry_rows[att];
+        double[] values = entry_values[att];
+        int[] order = sorted[att];
+
+        int zeros_drawn = drawn;
+        double[] zeros = class_totals.clone();
+        for (int k = 0; k<rows.length; ++k){
+            int row = rows[k];
+            if (counts[row]>0 && classes[row]>=0)
+                --zeros_drawn;
+            if (w[row]!=0)
+                zeros[classes[row]] -= w[row];
+        }
+
+        Precision precision = new Precision();
+        boolean zero_left = zeros_drawn>0;
+        for (int k : order){
+            int row = rows[k];
+            if (counts[row]==0 || classes[row]<0)
+                continue;
+
+            if (zero_left && values[k]>0){
+                precision.add(0);
+                zero_left = false;
+            }
+            precision.add(values[k]);
+        }
+        if (zero_left)
+            precision.add(0);
+
+        Estimator[] estimators = new Estimator[num_classes];
+        for (int c = 0; c<num_classes; ++c)
+            estimators[c] = kernel? new KernelEstimator(precision.get()) : new NormalEstimator(precision.get());
+
+        double[] pending = new double[num_classes];
+        double current = 0;
+        zero_left = true;
+        for (int k : order){
+            int row = rows[k];
+            if (w[row]==0)
+                continue;
+
+            double value = values[k];
+            if (zero_left && value>0){
+                addPending(estimators, current, pending);
+                current = 0;
+                addZeros(pending, zeros);
+                zero_left = false;
+            }
+            if (value!=current)
+                addPending(estimators, current, pending);
+            current = value;
+            pending[classes[row]] += w[row];
+        }
+        if (zero_left){
+            if (current!=0)
+                addPending(estimators, current, pending);
+            current = 0;
+            addZeros(pending, zeros);
+        }
+        addPending(estimators, current, pending);
+
+        return estimators;
+    }
+
+    //Add the weight of the value 0 of each class to the pending one
+    private void addZeros(double[] pending, double[] zeros){
+        for (int c = 0; c<num_classes; ++c){
+            if (zeros[c]>0)
+                pending[c] += zeros[c];
+        }
+    }
+
+    //Add the pending weight of each class for a value, and reset it
+    private void addPending(Estimator[] estimators, double value, double[] pending){
+        for (int c = 0; c<num_classes; ++c){
+            if (pending[c]!=0){
+                estimators[c].addValue(value, pending[c]);
+                pending[c] = 0;
+            }
+        }
+    }
+
+    //Precision of a numeric attribute from its distinct values, given in order: the mean difference between adjacent ones, as NaiveBayes computes it
+    private static class Precision {
+
+        private double last, delta_sum;
+        private int distinct;
+        private boolean first = true;
+
+        void add(double value){
+            if (first){
+                last = value;
+                first = false;
+            }
+            else if (value!=last){
+                delta_sum += value-last;
+                last = value;
+                ++distinct;
+            }
+        }
+
+        double get(){
+            return (distinct>0)? delta_sum/distinct : NaiveBayes.DEFAULT_NUM_PRECISION;
+        }
+    }
+}
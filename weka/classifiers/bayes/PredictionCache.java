@@ -0,0 +1,235 @@
+package weka.classifiers.bayes;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import weka.core.Instance;
+
+/**
+ * Bounded caches of the distribution each member gives, keyed by the values of the attributes the member sees, for data
+ * where the projected values of a member repeat far more often than whole rows do (mostly nominal data).
+ * Every member has a cache and a lock of its own, so threads scoring at once only wait for each other on the same member.
+ * Eviction is LRU, or LRU behind a TinyLFU admission filter: when the cache is full, new values only take the place of
+ * the least recently used ones if they were seen more often, as counted by a small count-min sketch halved as it fills.
+ * The caches belong to one set of members and start over when the set is replaced (growth, rotation), the counters
+ * are kept. When the set is replaced by the same classifiers after updates, only the updated members start over.
+ *
+ * @author Kindo
+ */
+class PredictionCache {
+
+    /*Eviction policies*/
+
+    static final int LRU = 0;
+    static final int TINY_LFU = 1;
+
+    //Names of the policies, as used in the options
+    static final String[] POLICIES = {"lru", "tinylfu"};
+
+    //Entries kept by each member and policy
+    private final int size, policy;
+
+    //Caches of the members of the last set scored
+    private volatile Caches caches;
+
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder(), rejections = new LongAdder();
+
+    //Distribution of a member, computed on a miss
+    interface Distribution {
+        double[] of(int member) throws Exception;
+    }
+
+    PredictionCache(int size, int policy){
+        this.size = size;
+        this.policy = policy;
+    }
+
+    //Add the distribution of every member of the set for the instance to prob, computing only those not cached
+    void addDistributions(Members<?, ?> set, Instance instance, double[] prob, Distribution distribution) throws Exception{
+        MemberCache[] members = of(set);
+        int class_index = instance.classIndex();
+
+        for (int i = 0; i<members.length; ++i){
+            Key key = new Key(instance, set.projections[i], class_index);
+            double[] member_prob = members[i].get(key);
+            if (member_prob!=null)
+                hits.increment();
+            else{
+                misses.increment();
+                member_prob = distribution.of(i);
+                members[i].put(key, member_prob.clone());//The caller may change the array it got
+            }
+
+            for (int c = 0; c<prob.length; ++c)
+                prob[c] += member_prob[c];
+        }
+    }
+
+    //Caches of the members of the set, new ones if the set changed
+    private MemberCache[] of(Members<?, ?> set){
+        Caches current = caches;
+        if (current==null || current.set!=set){//Racing threads may each make new caches, the last one is kept
+            MemberCache[] members = new MemberCache[set.size()];
+            for (int i = 0; i<members.length; ++i)
+                members[i] = new MemberCache();
+            current = caches = new Caches(set, members);
+        }
+        return current.members;
+    }
+
+    //Keep the caches of the set for the set replacing it with the same classifiers, new ones for the members that were updated
+    void carryOver(Members<?, ?> set, Members<?, ?> next, BitSet updated){
+        Caches current = caches;
+        if (current==null || current.set!=set)
+            return;
+
+        MemberCache[] members = current.members.clone();//The old set keeps its caches, for the predictions still using it
+        for (int i = updated.nextSetBit(0); i>=0; i = updated.nextSetBit(i+1))
+            members[i] = new MemberCache();
+        caches = new Caches(next, members);
+    }
+
+    //Text report of the counters
+    String snapshot(){
+        long hit = hits.sum(), miss = misses.sum();
+        Caches current = caches;
+        long entries = 0;
+        if (current!=null){
+            for (MemberCache member : current.members)
+                entries += member.entries();
+        }
+
+        StringBuilder text = new StringBuilder();
+        text.append("Prediction cache: ").append(size).append(" entries per classifier, ").append(POLICIES[policy]).append("\n");
+        text.append("Hits: ").append(hit).append(", misses: ").append(miss);
+        if (hit+miss>0)
+            text.append(", hit rate: ").append(String.format("%.4f", hit/(double) (hit+miss)));
+        text.append("\nEntries: ").append(entries).append(", evictions: ").append(evictions.sum());
+        if (policy==TINY_LFU)
+            text.append(", not admitted: ").append(rejections.sum());
+        text.append("\n");
+        return text.toString();
+    }
+
+    //The caches of the members of a set
+    private static class Caches {
+
+        final Members<?, ?> set;
+        final MemberCache[] members;
+
+        Caches(Members<?, ?> set, MemberCache[] members){
+            this.set = set;
+            this.members = members;
+        }
+    }
+
+    //Values of the attributes a member sees, without the class
+    private static class Key {
+
+        private final double[] values;
+        private final int hash;
+
+        Key(Instance instance, int[] projection, int class_index){
+            double[] projected = new double[projection.length];
+            int count = 0;
+            for (int att : projection){
+                if (att!=class_index)
+                    projected[count++] = instance.value(att);
+            }
+            values = (count<projected.length)? Arrays.copyOf(projected, count) : projected;
+            hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other){
+            return other instanceof Key && ((Key) other).hash==hash && Arrays.equals(((Key) other).values, values);
+        }
+    }
+
+    //Cache of one member, its methods hold its lock
+    private class MemberCache {
+
+        //Entries from the least to the most recently used
+        private final LinkedHashMap<Key, double[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        //Count-min sketch of how often values were seen (TinyLFU only): 4 rows of counters saturating at 15
+        private final int[] sketch;
+        private final int mask;
+        private int additions;
+
+        MemberCache(){
+            int width = (policy==TINY_LFU)? Integer.highestOneBit(Math.max(16, 4*size-1))<<1 : 0;
+            sketch = new int[4*width];
+            mask = width-1;
+        }
+
+        synchronized double[] get(Key key){
+            if (policy==TINY_LFU)
+                record(key);
+            return entries.get(key);
+        }
+
+        synchronized void put(Key key, double[] prob){
+            if (entries.containsKey(key))//Computed by another thread meanwhile
+                return;
+            if (entries.size()<size){
+                entries.put(key, prob);
+                return;
+            }
+
+            Iterator<Map.Entry<Key, double[]>> eldest = entries.entrySet().iterator();
+            Key victim = eldest.next().getKey();
+            if (policy==TINY_LFU && frequency(key)<=frequency(victim)){//Seen no more often than what it would replace
+                rejections.increment();
+                return;
+            }
+
+            eldest.remove();
+            evictions.increment();
+            entries.put(key, prob);
+        }
+
+        synchronized int entries(){
+            return entries.size();
+        }
+
+        //Count a sighting of the values, halving every counter once there were ten per entry
+        private void record(Key key){
+            for (int row = 0; row<4; ++row){
+                int j = index(key, row);
+                if (sketch[j]<15)
+                    ++sketch[j];
+            }
+
+            if (++additions>=10*size){
+                for (int j = 0; j<sketch.length; ++j)
+                    sketch[j] >>>= 1;
+                additions /= 2;
+            }
+        }
+
+        private int frequency(Key key){
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row<4; ++row)
+                min = Math.min(min, sketch[index(key, row)]);
+            return min;
+        }
+
+        //Counter of the values in a row of the sketch, each row hashing them with another seed
+        private int index(Key key, int row){
+            int h = key.hash*(0x9E3779B9 + 2*row);
+            h ^= h>>>16;
+            return row*(mask+1) + (h & mask);
+        }
+    }
+}
@@ -1,87 +1,61 @@
 package weka.classifiers.bayes;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
-import weka.classifiers.AbstractClassifier;
-import weka.core.Attribute;
-import weka.core.Capabilities;
-import weka.core.Capabilities.Capability;
+import weka.classifiers.UpdateableClassifier;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
-import weka.core.OptionHandler;
 import weka.core.Utils;
 
-import weka.filters.unsupervised.instance.Resample;
-import weka.filters.Filter;
-import weka.core.Randomizable;
-import weka.attributeSelection.CfsSubsetEval;
-
-import java.util.Random;
-import weka.core.DenseInstance;
-import weka.filters.unsupervised.attribute.Remove;
-
 /**
  *
  * @author Kindo
  */
-public class RandomBayes extends AbstractClassifier implements Randomizable, OptionHandler{
+public class RandomBayes extends RandomEnsemble<NaiveBayes, NaiveBayesScorer> implements UpdateableClassifier{
     
     /* Config */
     
     /*Default options*/
     
-    //Number of classifiers
-    public static final int DEF_N_CLASSIFIERS = 10;
-    
-    //Percentage of instances used in each classifier
-    public static final float DEF_PERC_INSTANCES = 1.0f;
-    
-    //Percentage of features used in each classifier
-    public static final float DEF_PERC_FEAT = 0.5f;
-    
     public static final boolean DEF_K_FLAG=false,DEF_D_FLAG=false,DEF_O_FLAG=false;
     
-    //Default seed
-    public static final int DEF_SEED = 0;
+    //With discretization, each classifier learns its own cut points from its sample by default
+    public static final boolean DEF_SHARED_BINS_FLAG = false;
     
     /* Data */
     
     /*Parameters*/
     
-    //Number of classifiers
-    int n_classifiers=DEF_N_CLASSIFIERS;
-    
-    //Percentage of instances
-    float perc_instances=DEF_PERC_INSTANCES;
-    
-    //Percentages of features
-    float perc_feat=DEF_PERC_FEAT;
-    
     //NaiveBayes parameters
     
     boolean k_flag=DEF_K_FLAG,d_flag=DEF_D_FLAG,o_flag=DEF_O_FLAG;
     
-    /*Random*/
+    //With discretization, learn the cut points once over the training data for every classifier
+    boolean shared_bins_flag=DEF_SHARED_BINS_FLAG;
     
-    //Seed used by the RNG
-    int seed=DEF_SEED;
+    //The cut points shared by the classifiers, null if each one discretizes by itself (or doesn't discretize)
+    SharedBins bins;
     
-    //RNG to be used by the classifier
-    Random rng;
+    //Sufficient statistics of the training data, used to train the members while building (not when they discretize by themselves)
+    transient NaiveBayesStats shared_stats;
     
-    /*Bagging*/
+    //Classifiers updated since their tables were last written, and whether there are any
+    BitSet stale_members = new BitSet();
+    volatile boolean scorer_stale;
     
-    //Bag of classifiers
-    NaiveBayes[] bag;
+    /*Updates*/
     
-    //Filter used for each classifier
-    Filter[] filters;
+    //RNG of each classifier drawing the weights of the updates, created with its first update, and the seed index of the classifier it belongs to
+    Random[] update_rngs;
+    int[] update_ids;
     
     /* Methods */
     
@@ -92,235 +66,216 @@ public class RandomBayes extends AbstractClassifier implements Randomizable, Opt
         super();
     }
     
-    /*Classifier*/
+    public String globalInfo(){
+        return "Bagging of NaiveBayes classifiers, each one trained with a bootstrap sample of the data and the "
+            + "attributes picked for it by a random CFS selection, averaging their distributions to predict.\n\n"
+            + "The model can be updated with new instances (online bagging), also while other threads predict with it "
+            + "or rotate its classifiers.";
+    }
+    
+    /*Members*/
     
-    //Train the classifier with the given instances
     @Override
-    public void buildClassifier(Instances data) throws Exception{
-        //Build the RNG
-        rng = new Random(getSeed());
-        
-        //Bag of classifiers
-        bag = new NaiveBayes[n_classifiers];
-        
-        //Indices of attributes used in each classifier
-        filters = new Filter[n_classifiers];
-        
-        //Train all the NaiveBayes
-        for (int i  = 0;i<n_classifiers;++i){
-            bag[i] = new weka.classifiers.bayes.NaiveBayes();//Create the classifier (untrained)
-            bag[i].setDisplayModelInOldFormat(o_flag);
-            bag[i].setUseKernelEstimator(k_flag);
-            bag[i].setUseSupervisedDiscretization(d_flag);
-            
-            //Create and configure the bootsrap filter, to get a random sample of the data
-            Resample bootstrap = new Resample();
-            bootstrap.setNoReplacement(false);//Using replacement
-            bootstrap.setSampleSizePercent(perc_instances*100);//Set the percentage
-            bootstrap.setRandomSeed(getSeed()+1);//Set the random seed
-            bootstrap.setInputFormat(data);//Call this last! Respect calling convention: https://weka.wikispaces.com/Use+WEKA+in+your+Java+code#Filter-Calling%20conventions
-            
-            Instances sample = Filter.useFilter(data, bootstrap);//Use the filter to get a sample
-            
-            List<Integer> chosen_atts = randomCFS(sample);//Indices of attributes to be kept
-            
-            if (data.classIndex()>=0)//If the class index is known, keep it
-                chosen_atts.add(data.classIndex());
-            
-            int[] array_atts = new int[chosen_atts.size()];
-            for (int index = 0;index<array_atts.length; ++index)
-                array_atts[index] += chosen_atts.get(index);
-            
-            //Filter to remove the features
-            Remove rem = new Remove();
-            rem.setInvertSelection(true);//Keep the columns in the indices
-            rem.setAttributeIndicesArray(array_atts);//Columns to keep
-            rem.setInputFormat(sample);//Call this last! Respect calling convention: https://weka.wikispaces.com/Use+WEKA+in+your+Java+code#Filter-Calling%20conventions
-            filters[i] = rem;//Save the filter to reapply later
-            sample = Filter.useFilter(sample, rem);//Remove the unselected features from the sample
-            
-            bag[i].buildClassifier(sample);//Train the classifier with the sample
-        }
+    void checkOptions(){
+        super.checkOptions();
+        if (slim_flag && k_flag)
+            throw new IllegalArgumentException("Slim models need compiled classifiers, kernel estimators can't be compiled");
     }
     
-    //Give the probability of an instance to belong to each possible class
     @Override
-    public double[] distributionForInstance(Instance instance) throws Exception{
-        
-        double[] prob = null;//Contains the probability to belong to each class
-        
-        for (int i = 0; i<n_classifiers;++i){//Classify with each NaiveBayes in the bag
-            
-            //Make a copy of the instance, and reapply the filter
-            Instance copy = new DenseInstance(instance);
-            
-            Filter filter = filters[i];
-            
-            if (!filter.isNewBatch())
-                filter.batchFinished();
-            
-            filter.input(copy);
-            filter.batchFinished();
-            copy = filter.output();
-            
-            double[] new_prob = bag[i].distributionForInstance(copy);//Distribution for this classifier
-            
-            if (prob==null){//First result
-                prob=new_prob;//Copy it directly
-            }
-            else{//Not the first result
-                
-                for (int cnt = 0; cnt<prob.length; ++cnt){//Add the probabilities together
-                    prob[cnt]+=new_prob[cnt];
-                }
-            }
-        }
+    void resetModel(Instances data) throws Exception{
+        bins = (d_flag && shared_bins_flag)? new SharedBins(data) : null;
+        update_rngs = null;
+        update_ids = null;
+        stale_members = new BitSet();
+        scorer_stale = false;
+    }
+    
+    @Override
+    NaiveBayes[] newBag(int size){
+        return new NaiveBayes[size];
+    }
+    
+    @Override
+    NaiveBayes trainMember(Instances data, int[] counts, int[] projection, Instances header) throws Exception{
+        if (shared_stats!=null)//Train the classifier straight from the statistics of the drawn instances
+            return shared_stats.train(counts, projection, header, k_flag, o_flag);
         
-        if (bag.length>=2){//Need to normalize?
-            for (int cnt = 0; cnt<prob.length; ++cnt){
-                prob[cnt]/=bag.length;//Normalize the probability, so the sum of all is 1
-            }
-        }
+        NaiveBayes nb = new weka.classifiers.bayes.NaiveBayes();//Create the classifier (untrained)
+        nb.setDisplayModelInOldFormat(o_flag);
+        nb.setUseKernelEstimator(k_flag);
+        nb.setUseSupervisedDiscretization(discretizes());
         
-        return prob;
+        Instances sample = Bootstrap.project(data, counts, projection, header, true);//Only the selected features of the drawn instances
+        nb.buildClassifier(sample);//Train the classifier with the sample, each drawn instance weighted by its multiplicity
+        return nb;
     }
     
-    /*
-        Perform feature selection, using CFS's score as the random probability for a feature to be picked.
-        Process is constructive, starting with 0 features and adding one in each iteration until the percentage of features is reached.
-        The CFS score is the probability of that feature to be added
-    */
+    @Override
+    NaiveBayesScorer compileScorer(Members<NaiveBayes, NaiveBayesScorer> set){
+        return NaiveBayesScorer.compile(set.bag, set.projections, set.headers, float_flag);
+    }
     
+    //Without discretization NaiveBayes doesn't keep any state when classifying, with it the discretization filter of the member is shared
+    //Kernel estimators can't be compiled, so the classifiers themselves are read, while updates may be changing them
+    @Override
+    boolean statefulMembers(){
+        return discretizes() || k_flag;
+    }
     
-    private class RatedAttribute{
-        private final double score;//CFS rating when adding this attribute
-        private final int att;//Index of the attribute
-        
-        public RatedAttribute(double score, int att){
-            this.score = score;
-            this.att = att;
-        }
-        
-        double getScore(){
-            return score;
-        }
-        
-        int getAtt(){
-            return att;
-        }
+    @Override
+    String uncompilable(){
+        return "Classifiers with kernel estimators";
     }
     
-    private List<Integer> randomCFS(Instances instances) throws Exception{
-        
-        CfsSubsetEval cfs = new CfsSubsetEval();//Create the cfs
-        cfs.buildEvaluator(instances);
-        
-        List<Attribute> all_atts = Collections.list(instances.enumerateAttributes());//List of all attributes
-        BitSet picked_atts = new BitSet(all_atts.size());//Attributes ready to be picked
-        picked_atts.clear();//Set them all to false, none is picked at the start
-        final int goal = (int) Math.ceil(all_atts.size()*this.perc_feat);//Number of features to reach
-        int n_picked_atts = 0;//Number of picked atts
-        double currentScore = 0.0;//CFS score of the currently selected subset of attributes (0 at the start, because we start with none)
-        
-        while(n_picked_atts<goal){//Add features until the goal is reached
-            double totalScore = 0.0;//Total CFS score in this iteration
-            List<RatedAttribute> ranking = new ArrayList<>();//Stores the CFS score when adding an attribute
-            for(int i = 0; i < all_atts.size(); ++i){//Iterate over the possible attributes
-                if (picked_atts.get(i))//Skip the element if it's already there
-                    continue;
-                
-                picked_atts.set(i);//Add this attribute
-                double score = cfs.evaluateSubset(picked_atts);//Eval the new subset
-                totalScore+=score;//Add it to the total
-                ranking.add(new RatedAttribute(score,i));
-                picked_atts.clear(i);//Turn it off again
-            }
-            
-            double random_att = rng.nextDouble()*totalScore;//Attribute will be picked when the accumulative probability reaches or exceeds this value
-            Integer picked_att = null;//Attribute to be picked
-            double newScore = 0.0;//CFS score adding the new picked attribute
-            
-            for (RatedAttribute rated_att : ranking){
-                random_att-=rated_att.getScore();//Decrease the random number by the probability
-                if(random_att<=0){//This is the selected attribute
-                    picked_att = rated_att.getAtt();
-                    newScore = rated_att.getScore();
-                    break;
-                }
-            }
-            
-            if (picked_att == null){//If none was picked, pick the last one
-                picked_att = ranking.get(ranking.size()-1).getAtt();
-                newScore = ranking.get(ranking.size()-1).getScore();
-            }
-            
-            //If the attribute picked improves the score, add it to the set
-            if (newScore > currentScore)
-            {
-                currentScore = newScore;
-                picked_atts.set(picked_att);//Set the picked attribute
-                ++n_picked_atts;
-            }
-            else
-            {
-                break;
-            }
-        }
-        
-        BitSet features_bit = picked_atts;//Bits of the features to keep
-        List<Integer> indices = new ArrayList<>();//Get them to a list
-        for (int feat_index = features_bit.nextSetBit(0); feat_index >= 0; feat_index = features_bit.nextSetBit(feat_index + 1)) {
-            indices.add(feat_index);
-        }
-        
-        return indices;
+    //True if each classifier discretizes the data by itself
+    boolean discretizes(){
+        return d_flag && bins==null;
     }
     
-    /*Randomizable*/
+    //The headers of the members are made from the binned data if they share the bins
+    @Override
+    Instances memberFormat(Instances data){
+        return (bins!=null)? bins.header : data;
+    }
     
-    //Set the random seed used by the RNG (has to be called before buildClassifier
+    //The data as the classifiers see it, binned if they share the bins
     @Override
-    public void setSeed(int seed) {
-        this.seed=seed;
+    Instances scored(Instances data){
+        return (bins!=null)? bins.bin(data) : data;
     }
     
-    //Get the random seed used by the RNG
     @Override
-    public int getSeed() {
-        return this.seed;
+    Instance scored(Instance instance){
+        return (bins!=null)? bins.bin(instance) : instance;
     }
     
-    /*OptionHandler*/
+    //Compute once what the members share while building
+    @Override
+    void prepareShared(Instances data) throws Exception{
+        super.prepareShared(data);
+        
+        //The members are trained from the statistics, unless NaiveBayes has to discretize each sample itself
+        if (!d_flag)
+            shared_stats = new NaiveBayesStats(data);
+        else if (bins!=null)//Of the bins, nominal attributes for the members
+            shared_stats = new NaiveBayesStats(bins.bin(data));
+    }
     
-    public void set_instances_perc(float new_perc){
-        if (bag==null)
-            perc_instances = new_perc/100.0f;
+    //Drop what only the building needs
+    @Override
+    void releaseShared(){
+        super.releaseShared();
+        shared_stats = null;
     }
     
-    public float get_instances_perc(){
-        return 100.0f*perc_instances;
+    /*
+        The classifiers as they are now. After updates, the same classifiers are published again with a scorer where only
+        the tables of the updated ones were written again, and only their cached distributions are dropped. The set a
+        running prediction holds is never changed.
+    */
+    @Override
+    Members<NaiveBayes, NaiveBayesScorer> currentMembers(){
+        if (scorer_stale){
+            synchronized (this){//Updates and the swaps of bags hold the lock
+                if (scorer_stale){
+                    Members<NaiveBayes, NaiveBayesScorer> current = members;
+                    Members<NaiveBayes, NaiveBayesScorer> next = current.withScorer((current.scorer!=null)? current.scorer.updated(stale_members, current.bag) : null);
+                    PredictionCache cache = prediction_cache;
+                    if (cache!=null)
+                        cache.carryOver(current, next, stale_members);
+                    members = next;
+                    stale_members.clear();
+                    scorer_stale = false;
+                }
+            }
+        }
+        return members;
     }
     
-    public void set_feat_perc(float new_perc){
-        if (bag==null)
-            perc_feat = new_perc/100.0f;
+    /*UpdateableClassifier*/
+    
+    /*
+        Online bagging: every classifier sees the instance, through its own attributes, a Poisson(1) number of times,
+        as many times as a bootstrap of the stream would draw it. The cost doesn't depend on how much data was seen.
+        Only the classifiers that drew the instance are marked, the next prediction publishes a scorer with their tables
+        written again (see currentMembers).
+    */
+    @Override
+    public void updateClassifier(Instance instance) throws Exception{
+        if (members==null)
+            throw new IllegalStateException("No model built yet.");
+        if (discretizes())
+            throw new Exception("Can't update classifiers that use discretization");
+        if (members.isSlim())
+            throw new Exception("Slim models keep no classifiers to update");
+        if (instance.classIsMissing())
+            return;
+        
+        synchronized (this){//A rotation compiles the classifiers it keeps holding the lock
+            Members<NaiveBayes, NaiveBayesScorer> current = members;
+            if (update_rngs==null || update_rngs.length<current.size()){//First update, or the bag was grown since
+                update_rngs = (update_rngs==null)? new Random[current.size()] : Arrays.copyOf(update_rngs, current.size());
+                update_ids = (update_ids==null)? new int[current.size()] : Arrays.copyOf(update_ids, current.size());
+            }
+            
+            Instance seen = scored(instance);//Binned once for every classifier
+            for (int i = 0; i<current.size(); ++i){
+                if (update_rngs[i]==null || update_ids[i]!=current.ids[i]){//A stream of its own for each classifier, apart from the one it was built with
+                    update_rngs[i] = new Random(~memberSeed(current.ids[i]));
+                    update_ids[i] = current.ids[i];
+                }
+                
+                int times = poisson(update_rngs[i]);
+                if (times==0)
+                    continue;
+                
+                Instance projected = project(current, seen, i);
+                projected.setWeight(instance.weight()*times);
+                synchronized (current.bag[i]){//Predictions without tables read the classifier itself
+                    current.bag[i].updateClassifier(projected);
+                }
+                stale_members.set(i);
+                scorer_stale = true;
+            }
+        }
+        
+        if (window_size>0)//Drifting data, the classifiers are also rotated
+            slide(instance);
     }
     
-    public float get_feat_perc(){
-        return 100.0f*perc_feat;
+    //Draw from a Poisson distribution with mean 1 (Knuth's method, two draws on average)
+    static int poisson(Random rng){
+        final double limit = Math.exp(-1.0);
+        int k = 0;
+        double p = rng.nextDouble();
+        while (p>limit){
+            ++k;
+            p *= rng.nextDouble();
+        }
+        return k;
     }
     
-    public void set_n_classifiers(int new_n){
-        if (bag==null)
-            n_classifiers=new_n;
+    /*Compact format*/
+    
+    @Override
+    public void writeCompact(File file) throws Exception{
+        if (bins!=null)
+            throw new Exception("Classifiers with shared bins can't be written in the compact format, it doesn't keep the cut points");
+        super.writeCompact(file);
     }
     
-    public int get_n_classifiers(){
-        return n_classifiers;
+    /*Model size*/
+    
+    @Override
+    long measureShared(ModelSize size){
+        return super.measureShared(size) + size.measure(bins);
     }
     
+    /*OptionHandler*/
+    
     public void set_k_flag(boolean new_flag){
-        if (bag==null){
+        if (members==null){
             k_flag=new_flag;
             if (k_flag)
                 set_d_flag(false);
@@ -332,7 +287,7 @@ public class RandomBayes extends AbstractClassifier implements Randomizable, Opt
     }
     
     public void set_d_flag(boolean new_flag){
-        if (bag==null){
+        if (members==null){
             d_flag=new_flag;
             if (d_flag)
                 set_k_flag(false);
@@ -343,8 +298,17 @@ public class RandomBayes extends AbstractClassifier implements Randomizable, Opt
         return d_flag;
     }
     
+    public void set_shared_bins_flag(boolean new_flag){
+        if (members==null)
+            shared_bins_flag=new_flag;
+    }
+    
+    public boolean get_shared_bins_flag(){
+        return shared_bins_flag;
+    }
+    
     public void set_o_flag(boolean new_flag){
-        if (bag==null){
+        if (members==null){
             o_flag=new_flag;
         }
     }
@@ -355,16 +319,7 @@ public class RandomBayes extends AbstractClassifier implements Randomizable, Opt
     
     @Override
     public String[] getOptions() {
-        List<String> result = new LinkedList<>();
-
-        result.add("-P");//Percentage of samples
-        result.add(""+(perc_instances*100));
-
-        result.add("-F");//Percentage of features
-        result.add(""+(perc_feat*100));
-
-        result.add("-N");//Number of classifiers
-        result.add(""+n_classifiers);
+        List<String> result = new LinkedList<>(Arrays.asList(super.getOptions()));
         
         if (k_flag)
             result.add("-K");
@@ -372,18 +327,17 @@ public class RandomBayes extends AbstractClassifier implements Randomizable, Opt
         if(d_flag)
             result.add("-D");
         
+        if (shared_bins_flag)
+            result.add("-shared-bins");
+        
         if(o_flag)
             result.add("-O");
-
+        
         return result.toArray(new String[result.size()]);
-  }
+    }
     
     @Override
     public void setOptions(String[] options) throws Exception {
-        set_instances_perc(Float.parseFloat(Utils.getOption('P', options)));
-        set_feat_perc(Float.parseFloat(Utils.getOption('F', options)));
-        set_n_classifiers(Integer.parseInt(Utils.getOption('N', options)));
-        
         boolean k = Utils.getFlag('K', options);
         boolean d = Utils.getFlag('D', options);
         if (k && d) {
@@ -393,44 +347,29 @@ public class RandomBayes extends AbstractClassifier implements Randomizable, Opt
         
         set_k_flag(k);
         set_d_flag(d);
+        set_shared_bins_flag(Utils.getFlag("shared-bins", options));
         set_o_flag(Utils.getFlag('O', options));
-        Utils.checkForRemainingOptions(options);
+        
+        super.setOptions(options);
     }
     
     @Override
     public Enumeration<Option> listOptions(){
-        List<Option> options = new LinkedList<>();
+        List<Option> options = new LinkedList<>(Collections.list(super.listOptions()));
         
-        options.add(new Option("Number of classifiers","N",1,"-N"));
-        options.add(new Option("Percentage of instances to train each classifier with", "P",1,"-P"));
-        options.add(new Option("Percentafe of features to train each classifier with", "F",1,"-F"));
         options.add(new Option("\tUse kernel density estimator rather than normal\n"+"\tdistribution for numeric attributes", "K", 0, "-K"));
         options.add(new Option("\tUse supervised discretization to process numeric attributes\n", "D",0, "-D"));
+        options.add(new Option("\tWith -D, learn the cut points once over the training data for every classifier, and bin\n"+"\teach instance once for all of them", "shared-bins",0,"-shared-bins"));
         options.add(new Option("\tDisplay model in old format (good when there are "+ "many classes)\n", "O", 0, "-O"));
         
         return Collections.enumeration(options);
     }
     
-    /*Capabalities*/
+    /*Output*/
     
     @Override
-    public Capabilities getCapabilities(){
-        
-    Capabilities result = super.getCapabilities();
-    result.disableAll();
-
-    // attributes
-    result.enable(Capability.NOMINAL_ATTRIBUTES);
-    result.enable(Capability.NUMERIC_ATTRIBUTES);
-    result.enable( Capability.MISSING_VALUES );
-
-    // class
-    result.enable(Capability.NOMINAL_CLASS);
-    result.enable(Capability.MISSING_CLASS_VALUES);
-
-    // instances
-    result.setMinimumNumberInstances(0);
-
-    return result;
+    void describe(StringBuilder text){
+        if (bins!=null)
+            text.append("Discretization: cut points learned once, shared by every classifier\n");
     }
 }
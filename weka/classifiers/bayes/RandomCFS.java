@@ -0,0 +1,275 @@
+package weka.classifiers.bayes;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import weka.core.Instances;
+
+/**
+ * Feature selection used by RandomBayes and RandomTAN, using CFS's score as the random probability for a feature to be picked.
+ * Process is constructive, starting with 0 features and adding one in each iteration until the percentage of features is reached.
+ *
+ * The CFS merit of a subset S is num/sqrt(denom), with num = sum(s_i*c_ic) and denom = sum(s_i^2) + 2*sum(s_i*s_j*c_ij) over S.
+ * Instead of evaluating every candidate subset from scratch, num and denom of the current subset are kept, along with
+ * sum(s_k*s_j*c_kj) over S for every candidate k, so the merit of each candidate is an O(1) update.
+ * On wide data the candidates of each step can be scored by a fork/join pool, every one into its own slot of a double[],
+ * and the pick is a binary search of the prefix sums of the scores. Scores are added up in the order of the candidates
+ * whatever thread computed them, so the same seed picks the same attributes with or without the pool.
+ *
+ * @author Kindo
+ */
+class RandomCFS {
+
+    /*Where the correlations come from*/
+
+    //A new discretization of every sample
+    static final int MEMBER_CORRELATIONS = 0;
+
+    //One discretization of the whole training data, with correlations shared by every member
+    static final int SHARED_CORRELATIONS = 1;
+
+    //One discretization of the whole training data, with correlations weighted by each member's bootstrap
+    static final int WEIGHTED_CORRELATIONS = 2;
+
+    //Names of the modes, as used in the options
+    static final String[] CORRELATION_MODES = {"member", "shared", "weighted"};
+
+    //Fewest candidates scored by one task of the pool
+    private static final int MIN_PER_TASK = 128;
+
+    //Pairwise correlations
+    private final CfsCorrelations correlations;
+
+    //Indices of the candidate attributes
+    private final int[] candidates;
+
+    //Index of the class attribute
+    private final int class_index;
+
+    //Select from the attributes of the header with the given correlations. Every attribute but the class is a candidate
+    RandomCFS(Instances header, CfsCorrelations correlations){
+        this.correlations = correlations;
+
+        class_index = header.classIndex();
+        candidates = new int[header.numAttributes()-(class_index>=0? 1 : 0)];
+        for (int att = 0, i = 0; att<header.numAttributes(); ++att){
+            if (att!=class_index)
+                candidates[i++] = att;
+        }
+    }
+
+    //Pick a random subset of attributes, with ceil(perc_feat*attributes) attributes at most, and return their indices in order
+    List<Integer> select(float perc_feat, Random rng) throws Exception{
+        return select(perc_feat, 0, rng, null);
+    }
+
+    /*
+        The same, scoring at each step only a random sample of the unpicked candidates: a fraction of the candidates when
+        sample is below 1, that many candidates otherwise (0 scores all of them). The candidates are scored on the pool
+        (sequentially if null).
+    */
+    List<Integer> select(float perc_feat, float sample, Random rng, ForkJoinPool pool) throws Exception{
+
+        final int n_atts = candidates.length;//Number of candidate attributes
+        BitSet picked_atts = new BitSet();//Attributes already picked, none at the start
+        final int goal = (int) Math.ceil(n_atts*perc_feat);//Number of features to reach
+        int n_picked_atts = 0;//Number of picked atts
+        double currentScore = 0.0;//CFS score of the currently selected subset of attributes (0 at the start, because we start with none)
+        final int sample_size = sampleSize(sample, n_atts);//Candidates scored at each step, 0 for all
+
+        double num = 0.0;//Numerator of the merit of the current subset
+        double denom = 0.0;//Squared denominator of the merit of the current subset
+
+        //For every candidate (by position), the terms it would add to denom/2 with the first cross_picks[i] attributes picked.
+        //Brought up to date only when the candidate is scored, so the correlations of the candidates never sampled aren't computed
+        double[] cross = new double[n_atts];
+        int[] cross_picks = new int[n_atts];
+        int[] picked_order = new int[n_atts];//Attributes picked, in the order they were
+
+        int[] unpicked = new int[n_atts];//Positions of the candidates not picked yet, the first n_unpicked ones
+        for (int i = 0; i<n_atts; ++i)
+            unpicked[i] = i;
+        int n_unpicked = n_atts;
+
+        double[] candidate_scores = new double[n_atts];//CFS score when adding each candidate (by position), scored ones only
+        int[] ranking = new int[n_atts];//Positions of the candidates of this iteration
+        int[] ranked_slots = new int[n_atts];//Where each of them is in unpicked
+        double[] cumulative = new double[n_atts];//Sum of the scores of the candidates of this iteration, up to each one
+
+        while(n_picked_atts<goal){//Add features until the goal is reached
+            int n_ranked = 0;//Number of candidates in this iteration
+            if (sample_size==0 || sample_size>=n_unpicked){//Every candidate left, in order
+                for (int i = 0; i<n_atts; ++i){
+                    if (!picked_atts.get(candidates[i]))//Skip the element if it's already there
+                        ranking[n_ranked++] = i;
+                }
+            }
+            else{//Draw the sample to the front of unpicked
+                for (; n_ranked<sample_size; ++n_ranked){
+                    int slot = n_ranked + rng.nextInt(n_unpicked-n_ranked);
+                    int swap = unpicked[slot];
+                    unpicked[slot] = unpicked[n_ranked];
+                    unpicked[n_ranked] = swap;
+                    ranking[n_ranked] = swap;
+                    ranked_slots[n_ranked] = n_ranked;
+                }
+            }
+
+            final int ranked = n_ranked, n_picked = n_picked_atts;
+            final double cur_num = num, cur_denom = denom;
+            forCandidates(pool, ranked, MIN_PER_TASK, (from, to) -> {
+                for (int r = from; r<to; ++r){
+                    int i = ranking[r], att = candidates[i];
+                    double std_dev = correlations.stdDev(att);
+                    for (; cross_picks[i]<n_picked; ++cross_picks[i]){//Add the attributes picked since it was last scored
+                        int picked_att = picked_order[cross_picks[i]];
+                        cross[i] += std_dev*correlations.stdDev(picked_att)*correlations.get(att, picked_att);
+                    }
+                    candidate_scores[i] = merit(cur_num + std_dev*correlations.get(att, class_index), cur_denom + std_dev*std_dev + 2.0*cross[i]);
+                }
+            });
+
+            double totalScore = 0.0;//Total CFS score in this iteration, added up in the order of the ranking
+            for (int r = 0; r<ranked; ++r){
+                totalScore+=candidate_scores[ranking[r]];
+                cumulative[r] = totalScore;
+            }
+
+            //Attribute will be picked when the accumulative probability reaches or exceeds this value, the last one if none reaches it
+            double random_att = rng.nextDouble()*totalScore;
+            int picked = firstReaching(cumulative, ranked, random_att);
+
+            int picked_att = candidates[ranking[picked]];//Attribute to be picked
+            double newScore = candidate_scores[ranking[picked]];//CFS score adding the new picked attribute
+
+            //If the attribute picked improves the score, add it to the set
+            if (newScore > currentScore)
+            {
+                currentScore = newScore;
+                picked_atts.set(picked_att);//Set the picked attribute
+                picked_order[n_picked_atts] = picked_att;
+                ++n_picked_atts;
+
+                if (sample_size!=0 && ranked<n_unpicked){//Take it out of the candidates left, it was drawn to the front
+                    unpicked[ranked_slots[picked]] = unpicked[n_unpicked-1];
+                    --n_unpicked;
+                }
+                else
+                    n_unpicked = n_atts-n_picked_atts;
+
+                //Move the sums to the new subset, its cross terms were brought up to date when it was scored
+                double std_dev = correlations.stdDev(picked_att);
+                num += std_dev*correlations.get(picked_att, class_index);
+                denom += std_dev*std_dev + 2.0*cross[ranking[picked]];
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        List<Integer> indices = new ArrayList<>();//Get them to a list
+        for (int feat_index = picked_atts.nextSetBit(0); feat_index >= 0; feat_index = picked_atts.nextSetBit(feat_index + 1)) {
+            indices.add(feat_index);
+        }
+
+        return indices;
+    }
+
+    //Candidates scored at each step for the given sample (a fraction below 1, a count otherwise) of n candidates, 0 for all of them
+    static int sampleSize(float sample, int n){
+        if (sample<=0)
+            return 0;
+        return (sample<1)? Math.max(1, (int) Math.ceil(sample*n)) : (int) sample;
+    }
+
+    //Position of the first of the n sums that reaches value, n-1 if none does
+    static int firstReaching(double[] cumulative, int n, double value){
+        int low = 0, high = n-1;
+        while (low<high){
+            int mid = (low+high)>>>1;
+            if (cumulative[mid]>=value)
+                high = mid;
+            else
+                low = mid+1;
+        }
+        return low;
+    }
+
+    //Run the body over the first n candidates of the ranking, split in ranges of at least min_per_task across the pool when there is one
+    private void forCandidates(ForkJoinPool pool, int n, int min_per_task, CandidateRange body) throws Exception{
+        if (pool==null || n<2*min_per_task){
+            body.run(0, n);
+            return;
+        }
+
+        try{
+            pool.invoke(new CandidateTask(body, 0, n, Math.max(min_per_task, n/(4*pool.getParallelism()))));
+        }
+        catch (CandidateException ex){
+            throw (Exception) ex.getCause();
+        }
+    }
+
+    //Scores the candidates [from, to) of the ranking
+    private interface CandidateRange {
+        void run(int from, int to) throws Exception;
+    }
+
+    //Splits a range of candidates in halves until they are small enough
+    private static class CandidateTask extends RecursiveAction {
+
+        private final CandidateRange body;
+        private final int from, to, grain;
+
+        CandidateTask(CandidateRange body, int from, int to, int grain){
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute(){
+            if (to-from<=grain){
+                try{
+                    body.run(from, to);
+                }
+                catch (Exception ex){
+                    throw new CandidateException(ex);
+                }
+                return;
+            }
+
+            int mid = (from+to)>>>1;
+            invokeAll(new CandidateTask(body, from, mid, grain), new CandidateTask(body, mid, to, grain));
+        }
+    }
+
+    //Failure of the correlations inside a task, thrown again by forCandidates
+    private static class CandidateException extends RuntimeException {
+        CandidateException(Exception cause){
+            super(cause);
+        }
+    }
+
+    //Merit of a subset from its sums, exactly as CfsSubsetEval.evaluateSubset finishes it
+    private static double merit(double num, double denom){
+        if (denom < 0.0)
+            denom *= -1.0;
+
+        if (denom == 0.0)
+            return 0.0;
+
+        double merit = num / Math.sqrt(denom);
+
+        if (merit < 0.0)
+            merit *= -1.0;
+
+        return merit;
+    }
+}
@@ -0,0 +1,1521 @@
+package weka.classifiers.bayes;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.core.BatchPredictor;
+import weka.core.Capabilities;
+import weka.core.Capabilities.Capability;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.OptionHandler;
+import weka.core.Randomizable;
+import weka.core.Utils;
+import weka.filters.unsupervised.attribute.Remove;
+
+/**
+ * What RandomBayes and RandomTAN share: a bag of classifiers, each one trained with a bootstrap sample of the data and
+ * the attributes picked for it by a random CFS selection (see RandomCFS), whose distributions are averaged to predict.
+ * Also the out-of-bag estimate, the adaptive size, the growth, the rotation over a window of recent rows, the batch
+ * prediction, the compiled scorer, the prediction cache and the instrumentation, and the options of all of them.
+ * The subclasses train the classifier of a member and compile the classifiers into a scorer.
+ *
+ * @author Kindo
+ */
+public abstract class RandomEnsemble<C extends Classifier, S extends EnsembleScorer> extends AbstractClassifier implements Randomizable, OptionHandler, BatchPredictor{
+    
+    /* Config */
+    
+    /*Default options*/
+    
+    //Number of classifiers
+    public static final int DEF_N_CLASSIFIERS = 10;
+    
+    //Percentage of instances used in each classifier
+    public static final float DEF_PERC_INSTANCES = 1.0f;
+    
+    //Percentage of features used in each classifier
+    public static final float DEF_PERC_FEAT = 0.5f;
+    
+    //Default seed
+    public static final int DEF_SEED = 0;
+    
+    //Default number of threads used to build the members and score batches (1 means sequential)
+    public static final int DEF_NUM_THREADS = 1;
+    
+    //Default number of threads scoring the candidates of each step of the feature selection (1 means sequential)
+    public static final int DEF_CFS_THREADS = 1;
+    
+    //Default source of the CFS correlations, a new discretization of each member's sample
+    public static final int DEF_CORR_MODE = RandomCFS.MEMBER_CORRELATIONS;
+    
+    //Default candidates scored at each step of the feature selection, 0 means all of them
+    public static final float DEF_CFS_SAMPLE = 0.0f;
+    
+    //Default maximum number of classifiers, the size of the bag is fixed to n_classifiers unless it is larger
+    public static final int DEF_MAX_CLASSIFIERS = 0;
+    
+    //Default change of the out-of-bag error and distributions under which an adaptive bag stops growing
+    public static final double DEF_TOLERANCE = 0.01;
+    
+    //Don't estimate the out-of-bag error by default
+    public static final boolean DEF_OOB_FLAG = false;
+    
+    //Default number of recent rows kept to rotate the classifiers, 0 means no rotation
+    public static final int DEF_WINDOW_SIZE = 0;
+    
+    //Default number of rows between two rotations, 0 means as many as the window keeps
+    public static final int DEF_ROTATION_PERIOD = 0;
+    
+    //Default number of classifiers replaced at each rotation
+    public static final int DEF_ROTATION_SIZE = 1;
+    
+    //Retire the oldest classifiers by default, rather than the worst ones on the window
+    public static final boolean DEF_RETIRE_WORST = false;
+    
+    //Keep the classifiers after compiling them by default, and their tables in double precision
+    public static final boolean DEF_SLIM_FLAG = false, DEF_FLOAT_FLAG = false;
+    
+    //Don't time the build and the predictions by default
+    public static final boolean DEF_INSTRUMENT_FLAG = false;
+    
+    //Don't cache the distributions of the classifiers by default, and evict the least recently used ones when caching
+    public static final int DEF_CACHE_SIZE = 0;
+    public static final int DEF_CACHE_POLICY = PredictionCache.LRU;
+    
+    //Smallest number of rows a batch is split into when scoring it in parallel
+    public static final int MIN_BATCH_ROWS_PER_THREAD = 1000;
+    
+    /* Data */
+    
+    /*Parameters*/
+    
+    //Number of classifiers
+    int n_classifiers=DEF_N_CLASSIFIERS;
+    
+    //Percentage of instances
+    float perc_instances=DEF_PERC_INSTANCES;
+    
+    //Percentages of features
+    float perc_feat=DEF_PERC_FEAT;
+    
+    /*Random*/
+    
+    //Seed used by the RNG
+    int seed=DEF_SEED;
+    
+    /*Parallelism*/
+    
+    //Number of threads used to build the members and score batches (0 means one per available core)
+    int num_threads=DEF_NUM_THREADS;
+    
+    //Number of threads scoring the candidates of each step of the feature selection, for very wide data (0 means one per available core)
+    int cfs_threads=DEF_CFS_THREADS;
+    
+    //Pool scoring the candidates, shared by the members while building (null when sequential)
+    transient ForkJoinPool cfs_pool;
+    
+    /*Feature selection*/
+    
+    //Where the CFS correlations of each member come from (see RandomCFS)
+    int corr_mode=DEF_CORR_MODE;
+    
+    //Candidates scored at each step of the feature selection: a fraction of the attributes when below 1, that many otherwise, all of them if 0
+    float cfs_sample=DEF_CFS_SAMPLE;
+    
+    //Correlations over the whole training data, shared by the members while building
+    transient CfsCorrelations shared_correlations;
+    
+    //Discretized training data, shared by the members while building
+    transient DiscreteColumns shared_columns;
+    
+    /*Adaptive size*/
+    
+    //Most classifiers an adaptive bag can get. When larger than n_classifiers the bag grows n_classifiers at a time until the out-of-bag error and distributions are stable
+    int max_classifiers=DEF_MAX_CLASSIFIERS;
+    
+    //Change between two chunks considered stable, of the out-of-bag error and of the mean out-of-bag distribution (half the L1 distance)
+    double tolerance=DEF_TOLERANCE;
+    
+    /*Out-of-bag*/
+    
+    //Estimate the error with the instances each classifier didn't draw
+    boolean oob_flag=DEF_OOB_FLAG;
+    
+    //Number of times each instance was drawn by each classifier, only kept while building
+    transient int[][] oob_counts;
+    
+    //Evaluation of the instances by the classifiers that didn't draw them, null if not estimated
+    Evaluation oob_eval;
+    
+    /*Bagging*/
+    
+    //Bag of classifiers, with the attributes each one sees and their scorer (null if they can't be compiled). Replaced as a whole when it changes
+    volatile Members<C, S> members;
+    
+    //Header of the training data
+    Instances data_header;
+    
+    //Index of the seed of the next classifier added to the bag
+    int next_id;
+    
+    /*Rotation*/
+    
+    //Most recent rows kept to train the replacements of the classifiers, 0 means no rotation
+    int window_size=DEF_WINDOW_SIZE;
+    
+    //Rows between two rotations (0 means window_size)
+    int rotation_period=DEF_ROTATION_PERIOD;
+    
+    //Classifiers replaced at each rotation
+    int rotation_size=DEF_ROTATION_SIZE;
+    
+    //Retire the classifiers with the highest error on the window instead of the oldest ones
+    boolean retire_worst=DEF_RETIRE_WORST;
+    
+    //The recent rows, a ring with the oldest one at window_next once it is full
+    Instance[] window;
+    int window_next, window_count;
+    
+    //Rows slid into the window since the last rotation
+    int rows_since_rotation;
+    
+    //Rotations done since the bag was built
+    volatile int rotations;
+    
+    //Thread training the replacements of the last rotation, and the failure it ended with
+    transient Thread rotation;
+    transient volatile Exception rotation_failure;
+    
+    /*Memory*/
+    
+    //Drop the classifiers once compiled, only their tables are kept (they can't be grown or rotated then)
+    boolean slim_flag=DEF_SLIM_FLAG;
+    
+    //Quantize the compiled tables to float32
+    boolean float_flag=DEF_FLOAT_FLAG;
+    
+    /*Instrumentation*/
+    
+    //Time the phases of the build of every member and the predictions (see EnsembleMetrics)
+    boolean instrument_flag=DEF_INSTRUMENT_FLAG;
+    
+    //What was measured since the last build, null when not instrumented
+    transient volatile EnsembleMetrics metrics;
+    
+    /*Prediction cache*/
+    
+    //Distributions cached by each member, keyed by the values it sees (0 means no cache), and how they are evicted
+    int cache_size=DEF_CACHE_SIZE;
+    int cache_policy=DEF_CACHE_POLICY;
+    
+    //Cached distributions and their counters, made when first used
+    transient volatile PredictionCache prediction_cache;
+    
+    /* Methods */
+    
+    /*Constructors*/
+    
+    public RandomEnsemble(){
+        //Call parent constructor
+        super();
+    }
+    
+    /*Members*/
+    
+    //Bag with room for size classifiers
+    abstract C[] newBag(int size);
+    
+    //Train the classifier of a member with the instances drawn (counts), seeing the attributes of the projection with the format of the header
+    abstract C trainMember(Instances data, int[] counts, int[] projection, Instances header) throws Exception;
+    
+    //The classifiers of the set flattened into a scorer, null if they can't be
+    abstract S compileScorer(Members<C, S> set) throws Exception;
+    
+    //True if a classifier keeps state while classifying, so it can't be used from several threads at once
+    abstract boolean statefulMembers();
+    
+    //What the classifiers can't be compiled with, for the errors of the compact format
+    abstract String uncompilable();
+    
+    //Learn from the training data what the members share in the model, before building them
+    void resetModel(Instances data) throws Exception{
+    }
+    
+    //Format of the data the headers of the members are made from
+    Instances memberFormat(Instances data){
+        return data;
+    }
+    
+    //The data as the classifiers see it
+    Instances scored(Instances data){
+        return data;
+    }
+    
+    Instance scored(Instance instance){
+        return instance;
+    }
+    
+    //Name of the classifier, for the messages and the instrumentation
+    String name(){
+        return getClass().getSimpleName();
+    }
+    
+    /*Classifier*/
+    
+    //Train the classifier with the given instances
+    @Override
+    public void buildClassifier(Instances data) throws Exception{
+        //Most classifiers the bag can get, only more than n_classifiers when the size is adaptive
+        int max_size = adaptive()? max_classifiers : n_classifiers;
+        
+        checkOptions();
+        
+        joinRotation();//Its replacements would go into the old bag
+        resetWindow(data);
+        metrics = instrument_flag? new EnsembleMetrics(name()) : null;
+        
+        data_header = new Instances(data, 0);
+        resetModel(data);
+        
+        //Bag of classifiers, with the attributes used in each one
+        Members<C, S> built = new Members<>(newBag(max_size));
+        
+        //The adaptive size is decided with the out-of-bag error, so it is tracked for it too
+        boolean track_oob = oob_flag || adaptive();
+        oob_counts = track_oob? new int[max_size][] : null;
+        oob_eval = null;
+        double[][] oob_votes = track_oob? new double[data.numInstances()][data.numClasses()] : null;
+        int[] oob_voters = track_oob? new int[data.numInstances()] : null;
+        double[][] oob_dists = adaptive()? new double[data.numInstances()][data.numClasses()] : null;
+        
+        int size = 0;//Classifiers built so far
+        prepareShared(data);
+        try{
+            double last_error = Double.NaN;//Out-of-bag error before the last chunk
+            
+            //Add n_classifiers classifiers at a time, until the bag is full or its out-of-bag error and distributions stop changing
+            while (size<max_size){
+                final int from = size, to = Math.min(max_size, size+Math.max(1, n_classifiers));
+                buildMembers(data, built, from, to, from);
+                size = to;
+                
+                if (track_oob){
+                    addOOBVotes(data, built, from, to, oob_votes, oob_voters);
+                    oob_eval = evaluateOOB(data, oob_votes, oob_voters);
+                    
+                    double error = oob_eval.errorRate();
+                    if (adaptive()){
+                        double change = updateOOBDists(oob_votes, oob_voters, oob_dists);
+                        if (Math.abs(error-last_error)<=tolerance && change<=tolerance)//Never true for the first chunk (NaN)
+                            break;
+                    }
+                    last_error = error;
+                }
+            }
+        }
+        finally{//Only needed while building
+            releaseShared();
+        }
+        
+        if (size<max_size)//Stopped growing early, keep only the classifiers built
+            built = built.resize(size);
+        next_id = size;
+        
+        members = compile(built);//Compile the trained bag for prediction
+    }
+    
+    //Throw if the options can't be used together
+    void checkOptions(){
+        if (slim_flag && window_size>0)
+            throw new IllegalArgumentException("Slim models keep no classifiers to rotate");
+    }
+    
+    //The classifiers with their scorer, or only the scorer for a slim model
+    Members<C, S> compile(Members<C, S> set) throws Exception{
+        Members<C, S> compiled = set.withScorer(compileScorer(set));
+        return (slim_flag && compiled.scorer!=null)? compiled.slim() : compiled;
+    }
+    
+    //Compute once what the members share while building
+    void prepareShared(Instances data) throws Exception{
+        //For feature selection
+        if (cfs_threads!=1)
+            cfs_pool = new ForkJoinPool((cfs_threads>0)? cfs_threads : Runtime.getRuntime().availableProcessors());
+        if (corr_mode!=RandomCFS.MEMBER_CORRELATIONS)
+            shared_columns = new DiscreteColumns(data);
+        if (corr_mode==RandomCFS.SHARED_CORRELATIONS)
+            shared_correlations = new CfsCorrelations.Weighted(shared_columns, null);
+    }
+    
+    //Drop what only the building needs
+    void releaseShared(){
+        if (cfs_pool!=null){
+            cfs_pool.shutdown();
+            cfs_pool = null;
+        }
+        shared_correlations = null;
+        shared_columns = null;
+        oob_counts = null;
+    }
+    
+    //Train the members [from, to) of the set, from the seeds first_id, first_id+1... Every member only writes its own slot of the arrays, so they can be built in parallel
+    void buildMembers(Instances data, Members<C, S> target, int from, int to, int first_id) throws Exception{
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i  = from;i<to;++i){
+            final int member = i;
+            tasks.add(() -> {
+                buildMember(data, target, member, first_id+member-from);
+                return null;
+            });
+        }
+        runTasks(tasks);
+    }
+    
+    /*Growth*/
+    
+    /*
+        Add k classifiers to the trained bag, with the data it was trained with.
+        The members come from the same sequence of seeds, so the result is the bag a build with k more classifiers gives.
+    */
+    public void addMembers(Instances data, int k) throws Exception{
+        Members<C, S> current = currentMembers();
+        if (current==null)
+            throw new IllegalStateException("No model built yet.");
+        if (current.isSlim())
+            throw new IllegalStateException("Slim models keep no classifiers to grow");
+        if (!data_header.equalHeaders(data))
+            throw new IllegalArgumentException("Data isn't the data the classifier was built with: "+data_header.equalHeadersMsg(data));
+        
+        joinRotation();//Both build from the shared state, and the rotation replaces the bag
+        current = currentMembers();
+        
+        final int from = current.size(), to = from+k;
+        Members<C, S> grown = current.resize(to);//The bag in use doesn't change until the new one is ready
+        
+        boolean track_oob = oob_eval!=null;//Keep the out-of-bag estimate up to date, with every classifier
+        oob_counts = track_oob? new int[to][] : null;
+        
+        prepareShared(data);
+        try{
+            buildMembers(data, grown, from, to, next_id);
+            
+            if (track_oob){
+                double[][] oob_votes = new double[data.numInstances()][data.numClasses()];
+                int[] oob_voters = new int[data.numInstances()];
+                
+                //The classifiers already in the bag draw their bootstrap again, a chunk at a time so only one chunk of them is kept
+                int chunk = Math.max(1, k);
+                for (int first = 0; first<from; first += chunk){
+                    int last = Math.min(from, first+chunk);
+                    for (int i = first; i<last; ++i)
+                        oob_counts[i] = bootstrap(data.numInstances(), new Random(memberSeed(grown.ids[i])));
+                    addOOBVotes(data, grown, first, last, oob_votes, oob_voters);
+                }
+                addOOBVotes(data, grown, from, to, oob_votes, oob_voters);
+                oob_eval = evaluateOOB(data, oob_votes, oob_voters);
+            }
+        }
+        finally{
+            releaseShared();
+        }
+        next_id += k;
+        
+        //The options now describe a bag of fixed size
+        n_classifiers = to;
+        max_classifiers = DEF_MAX_CLASSIFIERS;
+        
+        members = compile(grown);//Compile the grown bag for prediction
+    }
+    
+    //Distributions given by the first sizes[j] classifiers of the bag to every instance of the batch, [j][row][class]. Every size is computed in one pass over the classifiers
+    public double[][][] prefixDistributions(Instances data, int[] sizes) throws Exception{
+        final Members<C, S> current = currentMembers();
+        final Instances batch = scored(data);
+        for (int j = 0; j<sizes.length; ++j){
+            if (sizes[j]<1 || sizes[j]>current.size() || (j>0 && sizes[j]<=sizes[j-1]))
+                throw new IllegalArgumentException("Sizes have to be increasing, between 1 and "+current.size());
+        }
+        
+        final int n = batch.numInstances();
+        final double[][][] prob = new double[sizes.length][n][];
+        
+        int threads = (num_threads>0)? num_threads : Runtime.getRuntime().availableProcessors();
+        int n_tasks = Math.max(1, Math.min(threads, n/MIN_BATCH_ROWS_PER_THREAD));
+        
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int task = 0; task<n_tasks; ++task){
+            final int from = (int) ((long) n*task/n_tasks);
+            final int to = (int) ((long) n*(task+1)/n_tasks);
+            tasks.add(() -> {
+                double[] sum = new double[batch.numClasses()];//Distributions of the classifiers so far
+                for (int row = from; row<to; ++row){
+                    Instance instance = batch.instance(row);
+                    Arrays.fill(sum, 0.0);
+                    
+                    int done = 0;
+                    for (int j = 0; j<sizes.length; ++j){
+                        addDistributions(current, instance, done, sizes[j], sum);
+                        done = sizes[j];
+                        
+                        prob[j][row] = new double[sum.length];
+                        for (int cnt = 0; cnt<sum.length; ++cnt)
+                            prob[j][row][cnt] = sum[cnt]/done;
+                    }
+                }
+                return null;
+            });
+        }
+        runTasks(tasks);
+        
+        return prob;
+    }
+    
+    //Add the distributions of the classifiers [first, last) of the set for the instance to prob
+    private void addDistributions(Members<C, S> set, Instance instance, int first, int last, double[] prob) throws Exception{
+        if (set.scorer!=null){
+            set.scorer.addDistributions(instance, prob, first, last);
+            return;
+        }
+        
+        for (int i = first; i<last; ++i){
+            double[] new_prob = memberDistribution(set, i, instance);
+            for (int cnt = 0; cnt<prob.length; ++cnt)
+                prob[cnt]+=new_prob[cnt];
+        }
+    }
+    
+    //Run the tasks in order when single threaded, or on a pool of num_threads threads otherwise
+    void runTasks(List<Callable<Void>> tasks) throws Exception{
+        int threads = (num_threads>0)? num_threads : Runtime.getRuntime().availableProcessors();
+        
+        if (threads<=1 || tasks.size()<=1){//Sequential
+            for (Callable<Void> task : tasks)
+                task.call();
+            return;
+        }
+        
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        try{
+            List<Future<Void>> results = new ArrayList<>();
+            for (Callable<Void> task : tasks)
+                results.add(pool.submit(task));
+            
+            for (Future<Void> result : results){
+                try{
+                    result.get();
+                }
+                catch (ExecutionException ex){//Rethrow the original failure of the task
+                    if (ex.getCause() instanceof Exception)
+                        throw (Exception) ex.getCause();
+                    throw ex;
+                }
+            }
+        }
+        finally{
+            pool.shutdownNow();
+        }
+    }
+    
+    //Train the i-th member of the set from the seed of index id, using only its own RNG so the result doesn't depend on the order of the members
+    void buildMember(Instances data, Members<C, S> target, int i, int id) throws Exception{
+        Random member_rng = new Random(memberSeed(id));//RNG of this member
+        EnsembleMetrics.Member timing = (metrics!=null)? metrics.member(i, id) : null;//Times of the phases, only when instrumented
+        target.ids[i] = id;
+        
+        //Draw the bootstrap sample as the number of times each instance is picked (same draws as the Resample filter), without copying any instance
+        int[] counts = bootstrap(data.numInstances(), member_rng);
+        if (oob_counts!=null)//Remember which instances this member didn't draw
+            oob_counts[i] = counts;
+        if (timing!=null)
+            timing.lap(EnsembleMetrics.BOOTSTRAP);
+        
+        List<Integer> chosen_atts = randomCFS(data, counts, member_rng, timing);//Indices of attributes to be kept
+        
+        if (data.classIndex()>=0)//If the class index is known, keep it
+            chosen_atts.add(data.classIndex());
+        
+        int[] array_atts = new int[chosen_atts.size()];
+        for (int index = 0;index<array_atts.length; ++index)
+            array_atts[index] += chosen_atts.get(index);
+        
+        //Filter to remove the features, only used to build the header of the data seen by the classifier
+        Remove rem = new Remove();
+        rem.setInvertSelection(true);//Keep the columns in the indices
+        rem.setAttributeIndicesArray(array_atts);//Columns to keep
+        rem.setInputFormat(memberFormat(data));//Call this last! Respect calling convention: https://weka.wikispaces.com/Use+WEKA+in+your+Java+code#Filter-Calling%20conventions
+        
+        //Remove keeps the columns in their original order, remember them to project instances without the filter
+        BitSet kept = new BitSet(data.numAttributes());
+        for (int att : array_atts)
+            kept.set(att);
+        int[] projection = target.projections[i] = kept.stream().toArray();
+        Instances header = target.headers[i] = rem.getOutputFormat();
+        
+        if (timing!=null)
+            timing.lap(EnsembleMetrics.REMOVE);
+        
+        target.bag[i] = trainMember(data, counts, projection, header);
+        
+        if (timing!=null){
+            timing.lap(EnsembleMetrics.TRAINING);
+            timing.done();
+        }
+    }
+    
+    //Add the distributions of the members [first, last) of the set to the votes of the training instances they didn't draw, and drop their draws
+    void addOOBVotes(Instances data, Members<C, S> set, int first, int last, double[][] votes, int[] voters) throws Exception{
+        final int n = data.numInstances();
+        final Instances rows = scored(data);
+        
+        int threads = (num_threads>0)? num_threads : Runtime.getRuntime().availableProcessors();
+        int n_tasks = Math.max(1, Math.min(threads, n/MIN_BATCH_ROWS_PER_THREAD));
+        
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int task = 0; task<n_tasks; ++task){
+            final int from = (int) ((long) n*task/n_tasks);
+            final int to = (int) ((long) n*(task+1)/n_tasks);
+            tasks.add(() -> {
+                for (int row = from; row<to; ++row){
+                    for (int i = first; i<last; ++i){
+                        if (oob_counts[i][row]!=0)
+                            continue;
+                        
+                        double[] new_prob = memberDistribution(set, i, rows.instance(row));
+                        for (int cnt = 0; cnt<new_prob.length; ++cnt)
+                            votes[row][cnt]+=new_prob[cnt];
+                        ++voters[row];
+                    }
+                }
+                return null;
+            });
+        }
+        runTasks(tasks);
+        
+        for (int i = first; i<last; ++i)//Only needed for these votes, don't keep a row of the data for every member until the build ends
+            oob_counts[i] = null;
+    }
+    
+    //Evaluate every training instance with the average of its votes, as the ensemble averages its members. Instances drawn by every member can't be evaluated
+    Evaluation evaluateOOB(Instances data, double[][] votes, int[] voters) throws Exception{
+        Evaluation eval = new Evaluation(data);
+        for (int row = 0; row<votes.length; ++row){//Add them in order
+            if (voters[row]==0)
+                continue;
+            
+            double[] prob = new double[votes[row].length];
+            for (int cnt = 0; cnt<prob.length; ++cnt)
+                prob[cnt] = votes[row][cnt]/voters[row];
+            eval.evaluateModelOnceAndRecordPrediction(prob, data.instance(row));
+        }
+        return eval;
+    }
+    
+    //Replace the out-of-bag distributions with the average of the current votes, and return how much they changed on average (half the L1 distance)
+    double updateOOBDists(double[][] votes, int[] voters, double[][] dists){
+        double change = 0.0;
+        int n_evaluated = 0;
+        
+        for (int row = 0; row<votes.length; ++row){
+            if (voters[row]==0)
+                continue;
+            
+            double distance = 0.0;
+            for (int cnt = 0; cnt<votes[row].length; ++cnt){
+                double prob = votes[row][cnt]/voters[row];
+                distance += Math.abs(prob-dists[row][cnt]);
+                dists[row][cnt] = prob;
+            }
+            change += distance/2;
+            ++n_evaluated;
+        }
+        
+        return (n_evaluated>0)? change/n_evaluated : Double.NaN;
+    }
+    
+    //Draw the bootstrap sample of a member from its RNG, as the number of times each instance is picked (same draws as the Resample filter)
+    int[] bootstrap(int n, Random member_rng){
+        int bootstrap_seed = member_rng.nextInt();//Random seed of the sample, drawn from the member's own RNG
+        return Bootstrap.counts(n, perc_instances*100, bootstrap_seed);
+    }
+    
+    //Seed of the RNG of the i-th member, derived from the seed of the classifier (SplitMix64 finalizer)
+    long memberSeed(int i){
+        long z = ((long) getSeed() << 32) + i + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    //Give the probability of an instance to belong to each possible class
+    @Override
+    public double[] distributionForInstance(Instance original) throws Exception{
+        EnsembleMetrics timed = metrics;
+        long start = (timed!=null)? System.nanoTime() : 0L;//Only timed when instrumented
+        
+        Instance instance = scored(original);//Once for every classifier
+        
+        double[] prob = null;//Contains the probability to belong to each class
+        
+        Members<C, S> current = currentMembers();//The same classifiers for the whole prediction, even if the bag is replaced meanwhile
+        PredictionCache cache = predictionCache();
+        if (cache!=null){//Only the classifiers that haven't seen the values of their attributes yet
+            prob = new double[instance.numClasses()];
+            cache.addDistributions(current, instance, prob, i -> singleDistribution(current, i, instance));
+        }
+        else if (current.scorer!=null){//Every classifier at once, from the compiled tables
+            prob = new double[instance.numClasses()];
+            current.scorer.addDistributions(instance, prob);
+        }
+        else for (int i = 0; i<current.size();++i){//Classify with each classifier in the bag
+            
+            double[] new_prob = memberDistribution(current, i, instance);//Distribution for this classifier
+            
+            if (prob==null){//First result
+                prob=new_prob;//Copy it directly
+            }
+            else{//Not the first result
+                
+                for (int cnt = 0; cnt<prob.length; ++cnt){//Add the probabilities together
+                    prob[cnt]+=new_prob[cnt];
+                }
+            }
+        }
+        
+        if (current.size()>=2){//Need to normalize?
+            for (int cnt = 0; cnt<prob.length; ++cnt){
+                prob[cnt]/=current.size();//Normalize the probability, so the sum of all is 1
+            }
+        }
+        
+        if (timed!=null)
+            timed.predicted(start, current.size());
+        
+        return prob;
+    }
+    
+    //The classifiers as they are now
+    Members<C, S> currentMembers(){
+        return members;
+    }
+    
+    /*Rotation*/
+    
+    /*
+        Follow drifting data: the most recent window_size rows are kept, and every rotation_period rows the rotation_size oldest
+        classifiers (or the ones with the highest error on the window) are replaced by new ones, trained on the window in the
+        background with a new random CFS selection. Predictions keep using the bag as it was until the replacements are
+        swapped in, all at once. A rotation isn't started while the last one is still training.
+    */
+    public void slide(Instance instance) throws Exception{
+        if (members==null)
+            throw new IllegalStateException("No model built yet.");
+        if (window_size<=0)
+            throw new IllegalStateException("No window to slide (see -window)");
+        throwRotationFailure();
+        if (instance.classIsMissing())
+            return;
+        
+        window[window_next] = (Instance) instance.copy();
+        window_next = (window_next+1)%window.length;
+        window_count = Math.min(window_count+1, window.length);
+        
+        int period = (rotation_period>0)? rotation_period : window_size;
+        if (++rows_since_rotation>=period && (rotation==null || !rotation.isAlive())){
+            rows_since_rotation = 0;
+            rotate();
+        }
+    }
+    
+    //Wait for the replacements of the last rotation to be swapped in, throwing the failure of the rotation if it failed
+    public void awaitRotation() throws Exception{
+        joinRotation();
+        throwRotationFailure();
+    }
+    
+    //Wait for the last rotation to end
+    void joinRotation() throws InterruptedException{
+        Thread running = rotation;
+        if (running!=null)
+            running.join();
+    }
+    
+    //Throw (once) the failure of the last rotation
+    void throwRotationFailure() throws Exception{
+        Exception failure = rotation_failure;
+        if (failure!=null){
+            rotation_failure = null;
+            throw new Exception("Rotation of the classifiers failed", failure);
+        }
+    }
+    
+    //Start the window again with the last rows of the training data
+    void resetWindow(Instances data){
+        window = (window_size>0)? new Instance[window_size] : null;
+        window_next = window_count = rows_since_rotation = rotations = 0;
+        rotation_failure = null;
+        
+        if (window!=null){
+            for (int row = Math.max(0, data.numInstances()-window_size); row<data.numInstances(); ++row){
+                if (data.instance(row).classIsMissing())
+                    continue;
+                window[window_next] = (Instance) data.instance(row).copy();
+                window_next = (window_next+1)%window.length;
+                ++window_count;
+            }
+        }
+    }
+    
+    //Pick the classifiers to retire, and train their replacements on a copy of the window in the background
+    void rotate() throws Exception{
+        final Members<C, S> current = currentMembers();
+        final Instances recent = new Instances(data_header, window_count);//Oldest row first
+        int oldest = (window_count<window.length)? 0 : window_next;
+        for (int j = 0; j<window_count; ++j)
+            recent.add(window[(oldest+j)%window.length]);
+        
+        final int[] slots = retired(current, recent);
+        final int first_id = next_id;
+        next_id += slots.length;
+        
+        rotation = new Thread(() -> {
+            try{
+                replace(recent, slots, first_id);
+            }
+            catch (Exception ex){//Thrown by the next slide
+                rotation_failure = ex;
+            }
+        }, name()+" rotation");
+        rotation.setDaemon(true);
+        rotation.start();
+    }
+    
+    //Slots of the classifiers to retire: the oldest ones, or the ones with the highest error on the recent rows (the oldest first among equals)
+    int[] retired(Members<C, S> set, Instances recent) throws Exception{
+        final double[] errors = new double[set.size()];
+        if (retire_worst){
+            double[] prob = new double[recent.numClasses()];
+            for (Instance instance : scored(recent)){
+                for (int i = 0; i<set.size(); ++i){
+                    Arrays.fill(prob, 0.0);
+                    addDistributions(set, instance, i, i+1, prob);
+                    if (Utils.maxIndex(prob)!=(int) instance.classValue())
+                        errors[i] += instance.weight();
+                }
+            }
+        }
+        
+        Integer[] order = new Integer[set.size()];
+        for (int i = 0; i<order.length; ++i)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> (errors[a]!=errors[b])? Double.compare(errors[b], errors[a]) : Integer.compare(set.ids[a], set.ids[b]));
+        
+        int[] slots = new int[Math.min(rotation_size, set.size())];
+        for (int j = 0; j<slots.length; ++j)
+            slots[j] = order[j];
+        return slots;
+    }
+    
+    //Train the replacements of the classifiers in the slots with the recent rows, from the seeds first_id, first_id+1..., and swap them into the bag at once
+    void replace(Instances recent, int[] slots, int first_id) throws Exception{
+        Members<C, S> fresh = new Members<>(newBag(slots.length));
+        prepareShared(recent);
+        try{
+            buildMembers(recent, fresh, 0, slots.length, first_id);
+        }
+        finally{
+            releaseShared();
+        }
+        
+        synchronized (this){//Bags are only replaced holding the lock
+            members = compile(members.replace(slots, fresh));
+            oob_eval = null;//It was the estimate of the classifiers trained with the training data
+            ++rotations;
+        }
+    }
+    
+    /*Compact format*/
+    
+    //Write the trained bag in the compact format (see CompactFormat), to be loaded by CompactModel.map. Only for classifiers that can be compiled
+    public void writeCompact(File file) throws Exception{
+        Members<C, S> current = currentMembers();
+        if (current==null)
+            throw new IllegalStateException("No model built yet.");
+        if (current.scorer==null)
+            throw new Exception(uncompilable()+" can't be written in the compact format");
+        
+        CompactFormat.write(file, current.scorer.kind(), data_header, current.scorer);
+    }
+    
+    /*Instrumentation*/
+    
+    //Phase times of the members built, subset sizes and prediction latencies measured since the last build (see EnsembleMetrics)
+    public String metricsSnapshot(){
+        EnsembleMetrics current = metrics;
+        if (current==null)
+            return name()+": Not instrumented (-instrument).";
+        return current.snapshot();
+    }
+    
+    //Hits, misses and evictions of the prediction cache since it was configured
+    public String cacheSnapshot(){
+        PredictionCache cache = prediction_cache;
+        if (cache_size<=0)
+            return name()+": No prediction cache (-cache).";
+        if (cache==null)
+            return name()+": Prediction cache not used yet.";
+        return cache.snapshot();
+    }
+    
+    /*Model size*/
+    
+    //Estimate of the heap taken by each part of the trained model. What parts share (the attributes of the headers...) is counted with the first one
+    public String measureModelSize(){
+        Members<C, S> current = currentMembers();
+        if (current==null)
+            return name()+": No model built yet.";
+        
+        ModelSize size = new ModelSize();
+        long shared = measureShared(size);
+        long headers = size.measure(current.headers);
+        long classifiers = size.measure(current.bag);
+        long projections = size.measure(current.projections) + size.measure(current.ids);
+        long tables = size.measure(current.scorer);
+        long total = shared+headers+classifiers+projections+tables;
+        
+        StringBuilder text = new StringBuilder();
+        text.append("Model size of ").append(current.size()).append(" classifiers").append(current.isSlim()? " (slim)" : "").append(float_flag? ", float32 tables" : "").append("\n");
+        text.append("Shared header: ").append(ModelSize.format(shared)).append("\n");
+        text.append("Headers of the classifiers: ").append(ModelSize.format(headers)).append("\n");
+        text.append("Classifiers: ").append(ModelSize.format(classifiers)).append("\n");
+        text.append("Attribute subsets: ").append(ModelSize.format(projections)).append("\n");
+        text.append("Compiled tables: ").append(ModelSize.format(tables)).append("\n");
+        text.append("Total: ").append(ModelSize.format(total)).append(", ").append(ModelSize.format(total/Math.max(1, current.size()))).append(" per classifier\n");
+        return text.toString();
+    }
+    
+    //Heap taken by what every classifier shares
+    long measureShared(ModelSize size){
+        return size.measure(data_header);
+    }
+    
+    /*Compiled tables*/
+    
+    //Largest difference, over the rows of the data, between the distribution of each classifier from the compiled tables and the one it gives by itself. Only rounding (or float32 precision with -float) is expected, 0 if nothing is compiled
+    public double compiledDifference(Instances data) throws Exception{
+        Members<C, S> current = currentMembers();
+        if (current==null)
+            throw new IllegalStateException("No model built yet.");
+        if (current.isSlim())
+            throw new IllegalStateException("Slim models keep no classifiers to compare the tables with");
+        if (current.scorer==null)
+            return 0;
+        
+        Instances batch = scored(data);
+        double max = 0;
+        for (Instance instance : batch){
+            for (int i = 0; i<current.size(); ++i){
+                double[] compiled = singleDistribution(current, i, instance);
+                double[] own = memberDistribution(current, i, instance);
+                for (int cnt = 0; cnt<own.length; ++cnt)
+                    max = Math.max(max, Math.abs(compiled[cnt]-own[cnt]));
+            }
+        }
+        return max;
+    }
+    
+    /*BatchPredictor*/
+    
+    //Give the distributions of a whole batch of instances, member by member, splitting big batches between threads
+    @Override
+    public double[][] distributionsForInstances(Instances data) throws Exception{
+        final Instances batch = scored(data);
+        final int n = batch.numInstances();
+        final double[][] prob = new double[n][batch.numClasses()];//Result matrix, each thread fills its own rows
+        
+        int threads = (num_threads>0)? num_threads : Runtime.getRuntime().availableProcessors();
+        int n_tasks = Math.max(1, Math.min(threads, n/MIN_BATCH_ROWS_PER_THREAD));
+        
+        final Members<C, S> current = currentMembers();
+        final PredictionCache cache = predictionCache();
+        final EnsembleMetrics timed = metrics;
+        
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int task = 0; task<n_tasks; ++task){
+            final int from = (int) ((long) n*task/n_tasks);
+            final int to = (int) ((long) n*(task+1)/n_tasks);
+            tasks.add(() -> {
+                long start = (timed!=null)? System.nanoTime() : 0L;//Each range of rows timed on its own when instrumented
+                
+                if (cache!=null){//Row by row through the cache, as single predictions, so both fill and read the same entries
+                    for (int row = from; row<to; ++row){
+                        Instance instance = batch.instance(row);
+                        cache.addDistributions(current, instance, prob[row], i -> singleDistribution(current, i, instance));
+                    }
+                }
+                else if (current.scorer!=null)//Every classifier at once, member by member over blocks of rows
+                    current.scorer.addDistributions(batch, from, to, prob);
+                else{
+                    for (int i = 0; i<current.size(); ++i)
+                        scoreMember(current, batch, i, from, to, prob);
+                }
+                
+                if (timed!=null)
+                    timed.predicted(start, current.size(), to-from);
+                return null;
+            });
+        }
+        runTasks(tasks);
+        
+        if (current.size()>=2){//Need to normalize?
+            for (double[] row : prob)
+                for (int cnt = 0; cnt<row.length; ++cnt)
+                    row[cnt]/=current.size();
+        }
+        
+        return prob;
+    }
+    
+    @Override
+    public boolean implementsMoreEfficientBatchPrediction(){
+        return true;
+    }
+    
+    //Add the distributions given by the i-th classifier of the set for the rows [from, to) of the batch to prob
+    void scoreMember(Members<C, S> set, Instances batch, int i, int from, int to, double[][] prob) throws Exception{
+        if (!statefulMembers()){
+            addMemberDistributions(set, i, batch, from, to, prob);
+            return;
+        }
+        
+        synchronized (set.bag[i]){//The state of the member is shared, lock it once for the whole range
+            addMemberDistributions(set, i, batch, from, to, prob);
+        }
+    }
+    
+    //Add the distributions of the i-th classifier of the set, once it is safe to use. A single projected instance is refilled for every row
+    private void addMemberDistributions(Members<C, S> set, int i, Instances batch, int from, int to, double[][] prob) throws Exception{
+        int[] projection = set.projections[i];
+        double[] values = new double[projection.length];
+        Instance projected = new DenseInstance(1.0, values);//Shares the values array, so refilling it updates the instance
+        projected.setDataset(set.headers[i]);
+        
+        for (int row = from; row<to; ++row){
+            Instance instance = batch.instance(row);
+            for (int att = 0; att<projection.length; ++att)
+                values[att] = instance.value(projection[att]);
+            projected.setWeight(instance.weight());
+            
+            double[] new_prob = set.bag[i].distributionForInstance(projected);
+            double[] row_prob = prob[row];
+            for (int cnt = 0; cnt<row_prob.length; ++cnt)
+                row_prob[cnt]+=new_prob[cnt];
+        }
+    }
+    
+    //Distribution given by the i-th classifier of the set, from the compiled tables if there are
+    private double[] singleDistribution(Members<C, S> set, int i, Instance instance) throws Exception{
+        if (set.scorer==null)
+            return memberDistribution(set, i, instance);
+        
+        double[] prob = new double[instance.numClasses()];
+        set.scorer.addDistributions(instance, prob, i, i+1);
+        return prob;
+    }
+    
+    //The prediction cache, null if there is none
+    private PredictionCache predictionCache(){
+        if (cache_size<=0)
+            return null;
+        
+        PredictionCache cache = prediction_cache;
+        if (cache==null)//Racing threads may each make one, the last one is kept
+            prediction_cache = cache = new PredictionCache(cache_size, cache_policy);
+        return cache;
+    }
+    
+    //Distribution given by the i-th classifier of the set, safe to call from several threads at once
+    double[] memberDistribution(Members<C, S> set, int i, Instance instance) throws Exception{
+        Instance projected = project(set, instance, i);
+        
+        if (!statefulMembers())
+            return set.bag[i].distributionForInstance(projected);
+        
+        synchronized (set.bag[i]){//The state of the member is shared
+            return set.bag[i].distributionForInstance(projected);
+        }
+    }
+    
+    //Build the instance seen by the i-th classifier of the set, reading the selected values straight from the original instance
+    Instance project(Members<C, S> set, Instance instance, int i){
+        Instance projected = Bootstrap.project(instance, set.projections[i], instance.weight());//Sparse if the instance is
+        projected.setDataset(set.headers[i]);
+        return projected;
+    }
+    
+    //Perform the random CFS feature selection (see RandomCFS) for a member trained with the given bootstrap, and return the indices of the picked attributes
+    private List<Integer> randomCFS(Instances data, int[] counts, Random rng, EnsembleMetrics.Member timing) throws Exception{
+        RandomCFS cfs;
+        
+        switch (corr_mode){
+            case RandomCFS.SHARED_CORRELATIONS:
+                cfs = new RandomCFS(data, shared_correlations);
+                break;
+            case RandomCFS.WEIGHTED_CORRELATIONS:
+                cfs = new RandomCFS(data, new CfsCorrelations.Weighted(shared_columns, counts));
+                break;
+            default://The sample discretized by itself, as CfsSubsetEval learns the cut points from the drawn instances repeated
+                cfs = new RandomCFS(data, new CfsCorrelations.Weighted(new DiscreteColumns(Bootstrap.replicate(data, counts)), null));
+        }
+        if (timing!=null)
+            timing.lap(EnsembleMetrics.CFS_CORRELATIONS);
+        
+        List<Integer> selected = cfs.select(perc_feat, cfs_sample, rng, cfs_pool);
+        if (timing!=null){
+            timing.lap(EnsembleMetrics.CFS_SELECTION);
+            timing.selected(selected.size());
+        }
+        return selected;
+    }
+    
+    /*Randomizable*/
+    
+    //Set the random seed used by the RNG (has to be called before buildClassifier
+    @Override
+    public void setSeed(int seed) {
+        this.seed=seed;
+    }
+    
+    //Get the random seed used by the RNG
+    @Override
+    public int getSeed() {
+        return this.seed;
+    }
+    
+    /*OptionHandler*/
+    
+    public void set_instances_perc(float new_perc){
+        if (members==null)
+            perc_instances = new_perc/100.0f;
+    }
+    
+    public float get_instances_perc(){
+        return 100.0f*perc_instances;
+    }
+    
+    public void set_feat_perc(float new_perc){
+        if (members==null)
+            perc_feat = new_perc/100.0f;
+    }
+    
+    public float get_feat_perc(){
+        return 100.0f*perc_feat;
+    }
+    
+    public void set_n_classifiers(int new_n){
+        if (members==null)
+            n_classifiers=new_n;
+    }
+    
+    public int get_n_classifiers(){
+        return n_classifiers;
+    }
+    
+    public void set_corr_mode(String new_mode){
+        if (members==null){
+            int mode = Arrays.asList(RandomCFS.CORRELATION_MODES).indexOf(new_mode);
+            if (mode<0)
+                throw new IllegalArgumentException("Unknown correlation mode: "+new_mode);
+            corr_mode=mode;
+        }
+    }
+    
+    public String get_corr_mode(){
+        return RandomCFS.CORRELATION_MODES[corr_mode];
+    }
+    
+    //Doesn't change the model, so it can be changed at any time
+    public void set_num_threads(int new_n){
+        num_threads=new_n;
+    }
+    
+    public int get_num_threads(){
+        return num_threads;
+    }
+    
+    public void set_cfs_threads(int new_n){
+        cfs_threads=new_n;
+    }
+    
+    public int get_cfs_threads(){
+        return cfs_threads;
+    }
+    
+    public void set_cfs_sample(float new_sample){
+        if (members==null)
+            cfs_sample=new_sample;
+    }
+    
+    public float get_cfs_sample(){
+        return cfs_sample;
+    }
+    
+    //True if the size of the bag is decided while building
+    boolean adaptive(){
+        return max_classifiers>n_classifiers;
+    }
+    
+    public void set_max_classifiers(int new_max){
+        if (members==null)
+            max_classifiers=new_max;
+    }
+    
+    public int get_max_classifiers(){
+        return max_classifiers;
+    }
+    
+    public void set_tolerance(double new_tolerance){
+        if (members==null)
+            tolerance=new_tolerance;
+    }
+    
+    public double get_tolerance(){
+        return tolerance;
+    }
+    
+    //Number of classifiers in the bag after building (chosen while building when the size is adaptive)
+    public int get_bag_size(){
+        return (members!=null)? members.size() : 0;
+    }
+    
+    public void set_oob_flag(boolean new_flag){
+        if (members==null)
+            oob_flag=new_flag;
+    }
+    
+    public boolean get_oob_flag(){
+        return oob_flag;
+    }
+    
+    //Out-of-bag error rate of the last build, NaN if it wasn't estimated
+    public double get_oob_error(){
+        return (oob_eval!=null)? oob_eval.errorRate() : Double.NaN;
+    }
+    
+    //Out-of-bag evaluation of the last build (confusion matrix, per class details...), null if it wasn't estimated
+    public Evaluation get_oob_evaluation(){
+        return oob_eval;
+    }
+    
+    public void set_window_size(int new_size){
+        if (members==null)
+            window_size=new_size;
+    }
+    
+    public int get_window_size(){
+        return window_size;
+    }
+    
+    //Doesn't change the model, so it can be changed at any time
+    public void set_rotation_period(int new_period){
+        rotation_period=new_period;
+    }
+    
+    public int get_rotation_period(){
+        return rotation_period;
+    }
+    
+    //Doesn't change the model, so it can be changed at any time
+    public void set_rotation_size(int new_size){
+        rotation_size=new_size;
+    }
+    
+    public int get_rotation_size(){
+        return rotation_size;
+    }
+    
+    //Doesn't change the model, so it can be changed at any time
+    public void set_retire_worst(boolean new_flag){
+        retire_worst=new_flag;
+    }
+    
+    public boolean get_retire_worst(){
+        return retire_worst;
+    }
+    
+    //Rotations of the classifiers since the bag was built
+    public int get_rotations(){
+        return rotations;
+    }
+    
+    public void set_slim_flag(boolean new_flag){
+        if (members==null)
+            slim_flag=new_flag;
+    }
+    
+    public boolean get_slim_flag(){
+        return slim_flag;
+    }
+    
+    public void set_float_flag(boolean new_flag){
+        if (members==null)
+            float_flag=new_flag;
+    }
+    
+    public boolean get_float_flag(){
+        return float_flag;
+    }
+    
+    //Doesn't change the model, so it can be changed at any time. Turning it on starts measuring from scratch
+    public void set_instrument_flag(boolean new_flag){
+        if (new_flag!=instrument_flag || metrics==null)
+            metrics = new_flag? new EnsembleMetrics(name()) : null;
+        instrument_flag=new_flag;
+    }
+    
+    public boolean get_instrument_flag(){
+        return instrument_flag;
+    }
+    
+    //Doesn't change the model, so it can be changed at any time. Changing it empties the cache
+    public void set_cache_size(int new_size){
+        if (new_size!=cache_size)
+            prediction_cache = null;
+        cache_size=new_size;
+    }
+    
+    public int get_cache_size(){
+        return cache_size;
+    }
+    
+    public void set_cache_policy(String new_policy){
+        int policy = Arrays.asList(PredictionCache.POLICIES).indexOf(new_policy);
+        if (policy<0)
+            throw new IllegalArgumentException("Unknown cache policy: "+new_policy);
+        if (policy!=cache_policy)
+            prediction_cache = null;
+        cache_policy=policy;
+    }
+    
+    public String get_cache_policy(){
+        return PredictionCache.POLICIES[cache_policy];
+    }
+    
+    
+    @Override
+    public String[] getOptions() {
+        List<String> result = new LinkedList<>();
+
+        result.add("-P");//Percentage of samples
+        result.add(""+(perc_instances*100));
+
+        result.add("-F");//Percentage of features
+        result.add(""+(perc_feat*100));
+
+        result.add("-N");//Number of classifiers
+        result.add(""+n_classifiers);
+        
+        result.add("-corr");//Source of the CFS correlations
+        result.add(get_corr_mode());
+        
+        result.add("-cfs-sample");//Candidates scored at each step of the feature selection
+        result.add(""+cfs_sample);
+        
+        result.add("-num-slots");//Number of threads
+        result.add(""+num_threads);
+        
+        result.add("-cfs-slots");//Number of threads scoring the candidates of the feature selection
+        result.add(""+cfs_threads);
+        
+        result.add("-max-classifiers");//Most classifiers of an adaptive bag
+        result.add(""+max_classifiers);
+        
+        result.add("-tolerance");//Change of the out-of-bag error considered stable
+        result.add(""+tolerance);
+        
+        if (oob_flag)
+            result.add("-oob");
+        
+        result.add("-window");//Recent rows kept to rotate the classifiers
+        result.add(""+window_size);
+        
+        result.add("-rotation-period");//Rows between two rotations
+        result.add(""+rotation_period);
+        
+        result.add("-rotation-size");//Classifiers replaced at each rotation
+        result.add(""+rotation_size);
+        
+        if (retire_worst)
+            result.add("-retire-worst");
+        
+        if (slim_flag)
+            result.add("-slim");
+        
+        if (float_flag)
+            result.add("-float");
+        
+        if (instrument_flag)
+            result.add("-instrument");
+        
+        result.add("-cache");//Distributions cached by each classifier
+        result.add(""+cache_size);
+        
+        result.add("-cache-policy");//How the cached distributions are evicted
+        result.add(get_cache_policy());
+
+        return result.toArray(new String[result.size()]);
+  }
+    
+    @Override
+    public void setOptions(String[] options) throws Exception {
+        set_instances_perc(Float.parseFloat(Utils.getOption('P', options)));
+        set_feat_perc(Float.parseFloat(Utils.getOption('F', options)));
+        set_n_classifiers(Integer.parseInt(Utils.getOption('N', options)));
+        
+        String mode = Utils.getOption("corr", options);
+        set_corr_mode(mode.length()!=0? mode : RandomCFS.CORRELATION_MODES[DEF_CORR_MODE]);
+        
+        String sample = Utils.getOption("cfs-sample", options);
+        set_cfs_sample(sample.length()!=0? Float.parseFloat(sample) : DEF_CFS_SAMPLE);
+        
+        String threads = Utils.getOption("num-slots", options);
+        set_num_threads(threads.length()!=0? Integer.parseInt(threads) : DEF_NUM_THREADS);
+        
+        String cfs_slots = Utils.getOption("cfs-slots", options);
+        set_cfs_threads(cfs_slots.length()!=0? Integer.parseInt(cfs_slots) : DEF_CFS_THREADS);
+        
+        String max = Utils.getOption("max-classifiers", options);
+        set_max_classifiers(max.length()!=0? Integer.parseInt(max) : DEF_MAX_CLASSIFIERS);
+        
+        String tol = Utils.getOption("tolerance", options);
+        set_tolerance(tol.length()!=0? Double.parseDouble(tol) : DEF_TOLERANCE);
+        
+        set_oob_flag(Utils.getFlag("oob", options));
+        
+        String window_rows = Utils.getOption("window", options);
+        set_window_size(window_rows.length()!=0? Integer.parseInt(window_rows) : DEF_WINDOW_SIZE);
+        
+        String period = Utils.getOption("rotation-period", options);
+        set_rotation_period(period.length()!=0? Integer.parseInt(period) : DEF_ROTATION_PERIOD);
+        
+        String rotated = Utils.getOption("rotation-size", options);
+        set_rotation_size(rotated.length()!=0? Integer.parseInt(rotated) : DEF_ROTATION_SIZE);
+        
+        set_retire_worst(Utils.getFlag("retire-worst", options));
+        set_slim_flag(Utils.getFlag("slim", options));
+        set_float_flag(Utils.getFlag("float", options));
+        set_instrument_flag(Utils.getFlag("instrument", options));
+        
+        String cached = Utils.getOption("cache", options);
+        set_cache_size(cached.length()!=0? Integer.parseInt(cached) : DEF_CACHE_SIZE);
+        
+        String policy = Utils.getOption("cache-policy", options);
+        set_cache_policy(policy.length()!=0? policy : PredictionCache.POLICIES[DEF_CACHE_POLICY]);
+        
+        Utils.checkForRemainingOptions(options);
+    }
+    
+    @Override
+    public Enumeration<Option> listOptions(){
+        List<Option> options = new LinkedList<>();
+        
+        options.add(new Option("Number of classifiers","N",1,"-N"));
+        options.add(new Option("Percentage of instances to train each classifier with", "P",1,"-P"));
+        options.add(new Option("Percentafe of features to train each classifier with", "F",1,"-F"));
+        options.add(new Option("\tWhere the CFS correlations come from: member (a new discretization of each sample),\n"+"\tshared (one discretization of the training data) or weighted (one discretization\n"+"\tof the training data, weighted by each bootstrap)", "corr",1,"-corr <mode>"));
+        options.add(new Option("\tCandidate attributes scored at each step of the feature selection, drawn at random: a fraction\n"+"\tof the attributes when below 1, that many attributes otherwise (default 0, all of them)", "cfs-sample",1,"-cfs-sample <num>"));
+        options.add(new Option("\tNumber of threads used to build the classifiers and score batches\n"+"\t(default 1, 0 to use one per core)", "num-slots",1,"-num-slots <num>"));
+        options.add(new Option("\tNumber of threads scoring the candidate attributes of each step of the feature selection,\n"+"\tfor data with thousands of attributes (default 1, 0 to use one per core)", "cfs-slots",1,"-cfs-slots <num>"));
+        options.add(new Option("\tMost classifiers of an adaptive bag: when larger than -N the bag grows -N classifiers\n"+"\tat a time until its out-of-bag error and distributions are stable (default 0, fixed size)", "max-classifiers",1,"-max-classifiers <num>"));
+        options.add(new Option("\tChange of the out-of-bag error and mean distribution between two growths considered stable\n"+"\t(default "+DEF_TOLERANCE+")", "tolerance",1,"-tolerance <num>"));
+        options.add(new Option("\tEstimate the out-of-bag error and confusion matrix while building", "oob",0,"-oob"));
+        options.add(new Option("\tRecent rows kept to replace classifiers as the data drifts, with new ones trained on them\n"+"\tin the background (default 0, no rotation)", "window",1,"-window <rows>"));
+        options.add(new Option("\tRows between two rotations (default 0, the size of the window)", "rotation-period",1,"-rotation-period <rows>"));
+        options.add(new Option("\tClassifiers replaced at each rotation (default "+DEF_ROTATION_SIZE+")", "rotation-size",1,"-rotation-size <num>"));
+        options.add(new Option("\tRetire the classifiers with the highest error on the window, rather than the oldest", "retire-worst",0,"-retire-worst"));
+        options.add(new Option("\tKeep only the compiled tables of the classifiers, not the classifiers (the model can't be\n"+"\tgrown or rotated then)", "slim",0,"-slim"));
+        options.add(new Option("\tQuantize the compiled tables to float32", "float",0,"-float"));
+        options.add(new Option("\tTime the phases of the build of every classifier and the predictions, shown by\n"+"\tmetricsSnapshot() and recorded as Flight Recorder events", "instrument",0,"-instrument"));
+        options.add(new Option("\tDistributions cached by each classifier, keyed by the values of its attributes, for data\n"+"\twhere these repeat (default 0, no cache). Counters shown by cacheSnapshot()", "cache",1,"-cache <entries>"));
+        options.add(new Option("\tHow cached distributions are evicted: lru, or tinylfu (only replaced by values seen more\n"+"\toften, default lru)", "cache-policy",1,"-cache-policy <policy>"));
+        
+        return Collections.enumeration(options);
+    }
+    
+    /*Output*/
+    
+    @Override
+    public String toString(){
+        if (members==null)
+            return name()+": No model built yet.";
+        
+        StringBuilder text = new StringBuilder();
+        text.append(name()).append("\n\n");
+        text.append("Classifiers: ").append(members.size()).append(", instances: ").append(get_instances_perc()).append("%, features: ").append(get_feat_perc()).append("%\n");
+        if (adaptive())
+            text.append("Adaptive size: ").append(n_classifiers).append(" classifiers at a time, at most ").append(max_classifiers).append(", tolerance ").append(tolerance).append("\n");
+        if (window_size>0)
+            text.append("Rotation: window of ").append(window_size).append(" rows, ").append(rotation_size).append(retire_worst? " worst" : " oldest").append(" classifiers every ").append((rotation_period>0)? rotation_period : window_size).append(" rows, ").append(rotations).append(" rotations\n");
+        describe(text);
+        if (cache_size>0)
+            text.append("Prediction cache: ").append(cache_size).append(" distributions per classifier, ").append(get_cache_policy()).append("\n");
+        if (slim_flag || float_flag)
+            text.append("Memory: ").append(slim_flag? "only the compiled tables" : "classifiers and compiled tables").append(float_flag? ", in float32" : "").append("\n");
+        
+        if (oob_eval!=null){
+            text.append("\nOut of bag error: ").append(Utils.doubleToString(oob_eval.errorRate(), 4)).append(" (").append(Utils.doubleToString(oob_eval.numInstances(), 0)).append(" instances)\n");
+            try{
+                text.append("\n").append(oob_eval.toMatrixString("=== Out of bag confusion matrix ==="));
+            }
+            catch (Exception ex){//Class isn't nominal, no matrix to show
+            }
+        }
+        
+        return text.toString();
+    }
+    
+    //Add the lines describing what only the subclass has
+    void describe(StringBuilder text){
+    }
+    
+    /*Capabalities*/
+    
+    @Override
+    public Capabilities getCapabilities(){
+        
+    Capabilities result = super.getCapabilities();
+    result.disableAll();
+
+    // attributes
+    result.enable(Capability.NOMINAL_ATTRIBUTES);
+    result.enable(Capability.NUMERIC_ATTRIBUTES);
+    result.enable( Capability.MISSING_VALUES );
+
+    // class
+    result.enable(Capability.NOMINAL_CLASS);
+    result.enable(Capability.MISSING_CLASS_VALUES);
+
+    // instances
+    result.setMinimumNumberInstances(0);
+
+    return result;
+    }
+}
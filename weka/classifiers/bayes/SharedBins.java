@@ -0,0 +1,143 @@
+package weka.classifiers.bayes;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.supervised.attribute.Discretize;
+
+/**
+ * Cut points of the numeric attributes learned once over the whole training data, with the same supervised MDL
+ * discretization NaiveBayes runs over its own sample with -D, so that every member of a RandomBayes trains and scores
+ * on the same bins. A row is binned once for the whole ensemble, and the members read the bin indices as nominal values.
+ * A sparse row stays sparse: only the values it stores are binned, plus the attributes whose bin for 0 isn't the first one.
+ * Binning only reads the cut points, so it is safe from several threads at once.
+ *
+ * @author Kindo
+ */
+class SharedBins implements Serializable {
+
+    //Cut points of each attribute, null for the ones not discretized (nominal attributes and the class)
+    private final double[][] cuts;
+
+    //The same cut points as buffers, to bin them as the scorers do (see EnsembleScorer.bin)
+    private transient DoubleBuffer[] cut_buffers;
+
+    //Attributes whose value 0 falls in a bin other than the first, in order. A sparse row has to store them once binned
+    private final int[] nonzero_zero_bins;
+
+    //Format of the binned data, the numeric attributes turned into nominal ones with a value per bin
+    final Instances header;
+
+    SharedBins(Instances data) throws Exception{
+        //Learn the cut points without the instances that have no class, as NaiveBayes does
+        Instances train = new Instances(data);
+        train.deleteWithMissingClass();
+
+        Discretize disc = new Discretize();
+        disc.setInputFormat(train);
+        header = new Instances(Filter.useFilter(train, disc), 0);
+
+        cuts = new double[data.numAttributes()][];
+        for (int att = 0; att<cuts.length; ++att){
+            if (att==data.classIndex() || !data.attribute(att).isNumeric())
+                continue;
+
+            double[] att_cuts = disc.getCutPoints(att);//Null when the attribute is a single bin
+            cuts[att] = (att_cuts!=null)? att_cuts : new double[0];
+        }
+        cut_buffers = buffers(cuts);
+
+        int[] atts = new int[cuts.length];
+        int n = 0;
+        for (int att = 0; att<cuts.length; ++att){
+            if (cuts[att]!=null && bin(0.0, att)!=0)
+                atts[n++] = att;
+        }
+        nonzero_zero_bins = Arrays.copyOf(atts, n);
+    }
+
+    //Buffers over the cut points of each attribute, null for the ones not discretized
+    private static DoubleBuffer[] buffers(double[][] cuts){
+        DoubleBuffer[] buffers = new DoubleBuffer[cuts.length];
+        for (int att = 0; att<cuts.length; ++att){
+            if (cuts[att]!=null)
+                buffers[att] = DoubleBuffer.wrap(cuts[att]);
+        }
+        return buffers;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+        in.defaultReadObject();
+        cut_buffers = buffers(cuts);
+    }
+
+    //The instance (of the original data) with its numeric values replaced by their bins, sparse if the instance is
+    Instance bin(Instance instance){
+        if (instance instanceof SparseInstance)
+            return binSparse(instance);
+
+        double[] values = instance.toDoubleArray();
+        for (int att = 0; att<values.length; ++att){
+            if (cuts[att]!=null && !Utils.isMissingValue(values[att]))
+                values[att] = bin(values[att], att);
+        }
+
+        Instance binned = new DenseInstance(instance.weight(), values);
+        binned.setDataset(header);
+        return binned;
+    }
+
+    //The same for a sparse instance: its stored values, merged with the attributes whose 0 doesn't fall in the first bin
+    private Instance binSparse(Instance instance){
+        int stored = instance.numValues();
+        double[] values = new double[stored+nonzero_zero_bins.length];
+        int[] indices = new int[values.length];
+        int n = 0;
+
+        for (int k = 0, z = 0; k<stored || z<nonzero_zero_bins.length; ){
+            int att = (k<stored)? instance.index(k) : Integer.MAX_VALUE;
+            int zero_att = (z<nonzero_zero_bins.length)? nonzero_zero_bins[z] : Integer.MAX_VALUE;
+
+            double value;
+            if (zero_att<att){//Not stored, so its value is 0
+                att = zero_att;
+                value = 0.0;
+                ++z;
+            }
+            else{
+                value = instance.valueSparse(k++);
+                if (zero_att==att)
+                    ++z;
+            }
+
+            indices[n] = att;
+            values[n++] = (cuts[att]!=null && !Utils.isMissingValue(value))? bin(value, att) : value;
+        }
+
+        Instance binned = new SparseInstance(instance.weight(), Arrays.copyOf(values, n), Arrays.copyOf(indices, n), cuts.length);
+        binned.setDataset(header);
+        return binned;
+    }
+
+    //Bin of a value of a discretized attribute
+    private int bin(double value, int att){
+        return EnsembleScorer.bin(value, cut_buffers[att], 0, cuts[att].length);
+    }
+
+    //Every instance of the data binned
+    Instances bin(Instances data){
+        Instances binned = new Instances(header, data.numInstances());
+        for (Instance instance : data)
+            binned.add(bin(instance));
+        return binned;
+    }
+}
@@ -0,0 +1,150 @@
+package weka.classifiers.bayes;
+
+import java.util.Arrays;
+
+import weka.classifiers.bayes.net.ParentSet;
+import weka.classifiers.bayes.net.search.local.TAN;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * TAN structure search of the members of a RandomTAN, with the weights of the tree read from tables instead of a scan of
+ * the sample for every pair of attributes. The tree itself is still built by TAN, only the scores it asks for change.
+ * With the member's own scores the sample is read once into columns of value indices, and each run of identical rows
+ * (the copies of a drawn instance) is kept once with its multiplicity, so every score comes from the same counts TAN
+ * would count and the tree is the same one. With class-conditional mutual information the weight of a pair is read from
+ * a ConditionalMutualInformation, shared by every member or weighted by the member's bootstrap, and the tree is the
+ * maximum spanning tree over it of Friedman et al.
+ * Everything it reads is dropped once the structure is built.
+ *
+ * @author Kindo
+ */
+class TreeSearch extends TAN {
+
+    /*Where the weights of the tree come from*/
+
+    //The scores of TAN over the member's sample
+    static final int MEMBER_SCORES = 0;
+
+    //Information over the whole training data, shared by every member
+    static final int SHARED_INFORMATION = 1;
+
+    //Information over one discretization of the whole training data, weighted by each member's bootstrap
+    static final int WEIGHTED_INFORMATION = 2;
+
+    //Names of the modes, as used in the options
+    static final String[] TREE_MODES = {"member", "shared", "weighted"};
+
+    //Score TAN gives a parent the node already has
+    private static final double ALREADY_PARENT = -1e100;
+
+    //Information the weights come from, null to score the sample
+    private transient ConditionalMutualInformation information;
+
+    //Attribute (of the original data) of each attribute of the member, to read the information with
+    private transient int[] projection;
+
+    //While building: the net, its data, the value indices of its distinct runs of rows by attribute and the rows each run stands for
+    private transient BayesNet net;
+    private transient Instances instances;
+    private transient int[][] columns;
+    private transient int[] runs;
+
+    //Search scoring the member's sample
+    TreeSearch(){
+    }
+
+    //Search reading the weights from the information, for a member seeing the attributes of the projection
+    TreeSearch(ConditionalMutualInformation information, int[] projection){
+        this.information = information;
+        this.projection = projection;
+    }
+
+    @Override
+    public void buildStructure(BayesNet bayes_net, Instances data) throws Exception{
+        net = bayes_net;
+        instances = data;
+        try{
+            if (information==null && !bayes_net.getUseADTree())
+                readColumns(data);
+            super.buildStructure(bayes_net, data);
+        }
+        finally{
+            net = null;
+            instances = null;
+            columns = null;
+            runs = null;
+            information = null;
+            projection = null;
+        }
+    }
+
+    //Read the value indices of the data, once for each run of identical rows
+    private void readColumns(Instances data){
+        int n = data.numInstances(), num_atts = data.numAttributes();
+        int[][] values = new int[num_atts][n];
+        int[] multiplicities = new int[n];
+
+        int distinct = 0;
+        for (int row = 0; row<n; ++row){
+            Instance instance = data.instance(row);
+            boolean same = distinct>0;
+            for (int att = 0; att<num_atts; ++att){
+                int value = (int) instance.value(att);//Same cast TAN counts with
+                values[att][distinct] = value;
+                same = same && value==values[att][distinct-1];
+            }
+
+            if (same)
+                ++multiplicities[distinct-1];
+            else
+                multiplicities[distinct++] = 1;
+        }
+
+        columns = new int[num_atts][];
+        for (int att = 0; att<num_atts; ++att)
+            columns[att] = Arrays.copyOf(values[att], distinct);
+        runs = Arrays.copyOf(multiplicities, distinct);
+    }
+
+    //Score of a node with its current parents, from the same counts LocalScoreSearchAlgorithm counts
+    @Override
+    public double calcNodeScore(int node){
+        if (information!=null)//The weight of a pair is all the tree needs
+            return 0.0;
+        if (columns==null)
+            return super.calcNodeScore(node);
+
+        ParentSet parents = net.getParentSet(node);
+        int cardinality = parents.getCardinalityOfParents(), num_values = instances.attribute(node).numValues();
+
+        //Parent configuration of each run, the first parent being the most significant
+        int[] cpts = new int[runs.length];
+        for (int p = 0; p<parents.getNrOfParents(); ++p){
+            int parent = parents.getParent(p), parent_values = instances.attribute(parent).numValues();
+            int[] column = columns[parent];
+            for (int k = 0; k<runs.length; ++k)
+                cpts[k] = cpts[k]*parent_values + column[k];
+        }
+
+        int[] counts = new int[cardinality*num_values];
+        int[] column = columns[node];
+        for (int k = 0; k<runs.length; ++k)
+            counts[num_values*cpts[k] + column[k]] += runs[k];
+
+        return calcScoreOfCounts(counts, cardinality, num_values, instances);
+    }
+
+    @Override
+    public double calcScoreWithExtraParent(int node, int candidate){
+        int class_index = instances.classIndex();
+        if (node==class_index)//TAN never gives the class a parent, don't score it
+            return 0.0;
+        if (information==null)
+            return super.calcScoreWithExtraParent(node, candidate);
+
+        if (candidate==class_index)
+            return ALREADY_PARENT;
+        return information.get(projection[node], projection[candidate]);
+    }
+}